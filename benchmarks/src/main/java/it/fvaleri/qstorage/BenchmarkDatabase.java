@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * In-memory H2 database shared by all benchmarks.
+ * Each instance has its own database, which is dropped when the last connection is closed.
+ * The read table has columns of four different types repeated up to {@link #MAX_COLUMNS},
+ * so that benchmarks can select a variable number of columns with a realistic type mix.
+ */
+final class BenchmarkDatabase implements AutoCloseable {
+    static final int MAX_COLUMNS = 8;
+    static final int MAX_ROWS = 10_000;
+
+    private static final List<Class<?>> TYPES = List.of(Long.class, String.class, BigDecimal.class, LocalDate.class);
+    private static final List<String> SQL_TYPES = List.of("BIGINT", "VARCHAR(64)", "DECIMAL(12, 2)", "DATE");
+
+    private final JdbcDataSource dataSource;
+    // keeps the database alive
+    private final Connection conn;
+
+    BenchmarkDatabase() throws SQLException {
+        this.dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:bench-" + UUID.randomUUID());
+        this.conn = dataSource.getConnection();
+        try (Statement stmt = conn.createStatement()) {
+            StringJoiner columns = new StringJoiner(", ");
+            for (int i = 1; i <= MAX_COLUMNS; i++) {
+                columns.add(column(i) + " " + SQL_TYPES.get((i - 1) % SQL_TYPES.size()));
+            }
+            stmt.execute("CREATE TABLE BENCH_READ (ID BIGINT PRIMARY KEY, " + columns + ")");
+            stmt.execute("CREATE TABLE BENCH_WRITE (ID BIGINT PRIMARY KEY, TEXT VARCHAR(64), AMOUNT DECIMAL(12, 2))");
+        }
+        StringJoiner params = new StringJoiner(", ");
+        for (int i = 0; i <= MAX_COLUMNS; i++) {
+            params.add("?");
+        }
+        try (PreparedStatement prepStmt = conn.prepareStatement("INSERT INTO BENCH_READ VALUES (" + params + ")")) {
+            for (int row = 1; row <= MAX_ROWS; row++) {
+                prepStmt.setLong(1, row);
+                for (int i = 1; i <= MAX_COLUMNS; i++) {
+                    switch ((i - 1) % TYPES.size()) {
+                        case 0 -> prepStmt.setLong(i + 1, row * 31L + i);
+                        case 1 -> prepStmt.setString(i + 1, "value-" + row + "-" + i);
+                        case 2 -> prepStmt.setBigDecimal(i + 1, BigDecimal.valueOf(row * 100L + i, 2));
+                        default -> prepStmt.setDate(i + 1, Date.valueOf(LocalDate.of(2018, 1, 1).plusDays(row % 365)));
+                    }
+                }
+                prepStmt.addBatch();
+                if (row % 1_000 == 0) {
+                    prepStmt.executeBatch();
+                }
+            }
+        }
+    }
+
+    JdbcDataSource dataSource() {
+        return dataSource;
+    }
+
+    Connection connection() {
+        return conn;
+    }
+
+    /**
+     * @param columns Number of selected columns.
+     * @return Query that selects the first rows of the read table, up to the row key parameter.
+     */
+    static String selectQuery(int columns) {
+        StringJoiner names = new StringJoiner(", ");
+        for (int i = 1; i <= columns; i++) {
+            names.add(column(i));
+        }
+        return "SELECT " + names + " FROM BENCH_READ WHERE ID <= ? ORDER BY ID";
+    }
+
+    /**
+     * @param columns Number of selected columns.
+     * @return Java types of the selected columns.
+     */
+    static List<Class<?>> columnTypes(int columns) {
+        List<Class<?>> result = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            result.add(TYPES.get(i % TYPES.size()));
+        }
+        return List.copyOf(result);
+    }
+
+    private static String column(int index) {
+        return "C" + index;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        conn.close();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of binding query parameters of a given type to a prepared statement, without executing it.
+ * With the generic path, types later in the dispatch chain pay for all the checks before them,
+ * while the precompiled binder and the parameter holder pick the setter upfront.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindBenchmark {
+    private static final int PARAMS = 8;
+
+    @Param({"String", "Long", "BigDecimal", "LocalDate", "bytes"})
+    String type;
+
+    private BenchmarkDatabase database;
+    private PreparedStatement prepStmt;
+    private List<Object> queryParams;
+    private ParamBinder binder;
+    private QueryParams paramHolder;
+    private boolean primitive;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = new BenchmarkDatabase();
+        StringJoiner params = new StringJoiner(", ");
+        for (int i = 0; i < PARAMS; i++) {
+            params.add("?");
+        }
+        prepStmt = database.connection().prepareStatement("SELECT " + params);
+        Object value = switch (type) {
+            case "String" -> "value";
+            case "Long" -> 42L;
+            case "BigDecimal" -> BigDecimal.valueOf(4200, 2);
+            case "LocalDate" -> LocalDate.of(2018, 1, 1);
+            case "bytes" -> new byte[64];
+            default -> throw new IllegalArgumentException("Invalid type " + type);
+        };
+        queryParams = Collections.nCopies(PARAMS, value);
+        binder = ParamBinder.of(queryParams);
+        paramHolder = new QueryParams(PARAMS);
+        primitive = value instanceof Long;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        prepStmt.close();
+        database.close();
+    }
+
+    @Benchmark
+    public PreparedStatement bind() {
+        JdbcQueryableStorage.setQueryParams(prepStmt, queryParams);
+        return prepStmt;
+    }
+
+    @Benchmark
+    public PreparedStatement bindPrecompiled() {
+        binder.bind(prepStmt, queryParams);
+        return prepStmt;
+    }
+
+    /**
+     * Longs are added as primitives, so this includes filling the holder.
+     */
+    @Benchmark
+    public PreparedStatement bindHolder() {
+        paramHolder.reset();
+        for (int i = 0; i < PARAMS; i++) {
+            if (primitive) {
+                paramHolder.param(42L);
+            } else {
+                paramHolder.param(queryParams.get(i));
+            }
+        }
+        paramHolder.bind(prepStmt);
+        return prepStmt;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.QueryableStorage.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read latency by result size and number of columns.
+ * The columnar read of the same result is included for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+    @Param({"1", "100", "10000"})
+    int rows;
+
+    @Param({"1", "4", "8"})
+    int columns;
+
+    private BenchmarkDatabase database;
+    private QueryableStorage storage;
+    private List<Class<?>> columnTypes;
+    private List<Object> queryParams;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = new BenchmarkDatabase();
+        Properties queries = new Properties();
+        queries.put("bench.select", BenchmarkDatabase.selectQuery(columns));
+        storage = QueryableStorage.create(database.dataSource(), queries, new StorageConfig().poolSize(1));
+        columnTypes = BenchmarkDatabase.columnTypes(columns);
+        queryParams = List.of((long) rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+        database.close();
+    }
+
+    @Benchmark
+    public List<Row> read() {
+        return storage.read("bench.select", columnTypes, queryParams);
+    }
+
+    @Benchmark
+    public ColumnarResult readColumnar() {
+        return storage.readColumnar("bench.select", columnTypes, queryParams);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write throughput of single writes (batch size 1) versus buffered batches.
+ * Each operation writes one row, so scores are directly comparable across batch sizes.
+ * Keys wrap around, so that the table size and the work per row stay constant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+    private static final int KEYS = 10_000;
+
+    @Param({"1", "10", "100", "1000"})
+    int batchSize;
+
+    private BenchmarkDatabase database;
+    private QueryableStorage storage;
+    private long key;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = new BenchmarkDatabase();
+        Properties queries = new Properties();
+        queries.put("bench.upsert", "MERGE INTO BENCH_WRITE (ID, TEXT, AMOUNT) KEY (ID) VALUES (?, ?, ?)");
+        storage = QueryableStorage.create(database.dataSource(), queries, new StorageConfig().poolSize(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+        database.close();
+    }
+
+    @Benchmark
+    public int write() {
+        long id = key++ % KEYS;
+        return storage.write("bench.upsert", List.of(id, "text", BigDecimal.ONE), batchSize);
+    }
+}
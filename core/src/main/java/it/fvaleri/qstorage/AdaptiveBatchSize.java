@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.time.Duration;
+
+/**
+ * Batch size of a query tuned from the measured batch latency, AIMD-style.
+ * While batches complete within the target latency, the size grows by the minimum size,
+ * but never beyond the size that the measured throughput would write in the target latency.
+ * When a batch exceeds the target latency, the size is halved.
+ */
+final class AdaptiveBatchSize {
+    private final long targetNanos;
+    private final int minSize;
+    private final int maxSize;
+    private int size;
+
+    /**
+     * @param targetLatency Target batch latency.
+     * @param minSize Minimum batch size, which is also the initial size and the increase step.
+     * @param maxSize Maximum batch size.
+     */
+    AdaptiveBatchSize(Duration targetLatency, int minSize, int maxSize) {
+        this.targetNanos = targetLatency.toNanos();
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.size = minSize;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Partial batches, which are flushed before reaching the current size, can only decrease it.
+     *
+     * @param rows Number of rows in the batch.
+     * @param nanos Batch latency.
+     */
+    synchronized void record(int rows, long nanos) {
+        if (rows <= 0) {
+            return;
+        }
+        if (nanos > targetNanos) {
+            size = Math.max(minSize, Math.min(size, rows) / 2);
+        } else if (rows >= size) {
+            long projected = nanos > 0 ? rows * targetNanos / nanos : Long.MAX_VALUE;
+            size = (int) Math.max(size, Math.min(Math.min(size + (long) minSize, projected), maxSize));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Per-query admission control, which bounds the executions in progress of queries with a concurrency attribute.
+ * Executions exceeding the limit wait in a bounded queue, and they are rejected when the queue is full
+ * or the queue timeout expires, so that one slow query cannot hold every connection.
+ * When the catalog is reloaded, changed limits apply to new executions, while executions
+ * admitted by a previous limit release their permit to that limit.
+ */
+final class AdmissionControl {
+    private volatile Map<String, Limit> limits;
+    private final long queueTimeoutNanos;
+
+    AdmissionControl(QueryCatalog catalog, Duration queueTimeout) {
+        this.limits = Map.of();
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        reload(catalog);
+    }
+
+    /**
+     * @param catalog New catalog.
+     */
+    synchronized void reload(QueryCatalog catalog) {
+        Map<String, Limit> updated = new HashMap<>();
+        for (String queryName : catalog.names()) {
+            int concurrency = catalog.intAttribute(queryName, QueryCatalog.ATTR_CONCURRENCY, 0);
+            if (concurrency > 0) {
+                int queueSize = catalog.intAttribute(queryName, QueryCatalog.ATTR_QUEUE, concurrency);
+                Limit limit = limits.get(queryName);
+                updated.put(queryName, limit != null && limit.concurrency == concurrency && limit.queueSize == queueSize
+                    ? limit : new Limit(concurrency, queueSize));
+            }
+        }
+        this.limits = Map.copyOf(updated);
+    }
+
+    /**
+     * Admit an execution, which must be followed by {@link #release(Limit)}.
+     *
+     * @param queryName Query name.
+     * @return Admitting limit, or null if the query has no limit.
+     * @throws RejectedExecutionException If the queue is full or the queue timeout expires.
+     */
+    Limit acquire(String queryName) {
+        Limit limit = limits.get(queryName);
+        if (limit == null || limit.permits.tryAcquire()) {
+            return limit;
+        }
+        if (limit.waiting.incrementAndGet() > limit.queueSize) {
+            limit.waiting.decrementAndGet();
+            throw new RejectedExecutionException(format("Query %s rejected: queue full", queryName));
+        }
+        try {
+            if (!limit.permits.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new RejectedExecutionException(format("Query %s rejected: queue timeout", queryName));
+            }
+            return limit;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while waiting for query %s", queryName));
+        } finally {
+            limit.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param limit Admitting limit, or null.
+     */
+    void release(Limit limit) {
+        if (limit != null) {
+            limit.permits.release();
+        }
+    }
+
+    static final class Limit {
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final int concurrency;
+        private final int queueSize;
+
+        private Limit(int concurrency, int queueSize) {
+            this.permits = new Semaphore(concurrency, true);
+            this.concurrency = concurrency;
+            this.queueSize = queueSize;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Buffers write query parameters per query name and executes them as JDBC batches.
+ * A batch is executed when it reaches the batch size, when the linger time expires,
+ * when it is explicitly flushed, or when the writer is closed.
+ * Linger flushes run on a background thread and their errors are raised by the next flush.
+ */
+final class BatchWriter implements AutoCloseable {
+    private final long lingerMs;
+    private final ToIntBiFunction<String, List<List<Object>>> batchExecutor;
+    private final Map<String, Batch> pending;
+    private final AtomicReference<RuntimeException> lingerError;
+    private final ScheduledThreadPoolExecutor flusher;
+
+    /**
+     * @param linger Linger time (zero disables the background flusher).
+     * @param batchExecutor Executes a batch and returns the number of written rows.
+     */
+    BatchWriter(Duration linger, ToIntBiFunction<String, List<List<Object>>> batchExecutor) {
+        this.lingerMs = linger.toMillis();
+        this.batchExecutor = batchExecutor;
+        this.pending = new ConcurrentHashMap<>();
+        this.lingerError = new AtomicReference<>();
+        this.flusher = lingerMs > 0 ? new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "qstorage-batch-flusher");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        if (flusher != null) {
+            // batches of linger flushes that did not start yet are flushed on close
+            flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+    }
+
+    /**
+     * Add query parameters to the pending batch.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @param batchSize Batch size.
+     * @return Number of written rows, which is zero if the batch is not full yet.
+     */
+    int add(String queryName, List<Object> queryParams, int batchSize) {
+        List<Object> params = queryParams != null ? new ArrayList<>(queryParams) : List.of();
+        Batch[] result = new Batch[2];
+        pending.compute(queryName, (k, batch) -> {
+            if (batch == null) {
+                batch = new Batch(batchSize);
+                result[0] = batch;
+            }
+            batch.rows.add(params);
+            if (batch.rows.size() >= batchSize) {
+                result[1] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (result[1] != null) {
+            return batchExecutor.applyAsInt(queryName, result[1].rows);
+        }
+        if (result[0] != null && flusher != null) {
+            Batch created = result[0];
+            flusher.schedule(() -> flushExpired(queryName, created), lingerMs, TimeUnit.MILLISECONDS);
+        }
+        return 0;
+    }
+
+    /**
+     * Execute the pending batch of one query.
+     *
+     * @param queryName Query name.
+     * @return Number of written rows.
+     */
+    int flush(String queryName) {
+        throwLingerError();
+        Batch batch = pending.remove(queryName);
+        return batch != null ? batchExecutor.applyAsInt(queryName, batch.rows) : 0;
+    }
+
+    /**
+     * Execute all pending batches.
+     * All batches are executed even if one fails, and the first error is raised at the end.
+     *
+     * @return Number of written rows.
+     */
+    int flush() {
+        throwLingerError();
+        return flushPending();
+    }
+
+    /**
+     * Pending batches are flushed after a running linger flush completes, because it has already taken its batch,
+     * and linger errors are raised after the flush.
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        RuntimeException error = lingerError.getAndSet(null);
+        try {
+            flushPending();
+        } catch (RuntimeException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private int flushPending() {
+        int result = 0;
+        RuntimeException error = null;
+        for (String queryName : pending.keySet()) {
+            try {
+                Batch batch = pending.remove(queryName);
+                result += batch != null ? batchExecutor.applyAsInt(queryName, batch.rows) : 0;
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    private void flushExpired(String queryName, Batch batch) {
+        if (pending.remove(queryName, batch)) {
+            try {
+                batchExecutor.applyAsInt(queryName, batch.rows);
+            } catch (RuntimeException e) {
+                lingerError.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private void throwLingerError() {
+        RuntimeException error = lingerError.getAndSet(null);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static final class Batch {
+        private final List<List<Object>> rows;
+
+        Batch(int batchSize) {
+            this.rows = new ArrayList<>(batchSize);
+        }
+    }
+}
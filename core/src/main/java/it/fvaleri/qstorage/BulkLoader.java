@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.BulkResult.Chunk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Splits a stream of rows into chunks that are written in their own transaction.
+ * Rows are read lazily on the calling thread, and at most parallelism chunks are in memory,
+ * so the input size is unbounded.
+ * With parallelism greater than one, chunks are written by the executor tasks,
+ * unless the caller is in a transaction, whose connection cannot be shared.
+ */
+final class BulkLoader {
+    private final Executor executor;
+    private final int maxParallelism;
+    private final ChunkWriter chunkWriter;
+
+    /**
+     * @param executor Executor for parallel chunks.
+     * @param maxParallelism Maximum number of parallel chunks (pool size).
+     * @param chunkWriter Writes and commits a chunk.
+     */
+    BulkLoader(Executor executor, int maxParallelism, ChunkWriter chunkWriter) {
+        this.executor = executor;
+        this.maxParallelism = maxParallelism;
+        this.chunkWriter = chunkWriter;
+    }
+
+    /**
+     * @param queryName Query name.
+     * @param rows Rows.
+     * @param options Bulk options.
+     * @param sequential Whether chunks must be written on the calling thread.
+     * @return Bulk result.
+     */
+    BulkResult load(String queryName, Stream<List<Object>> rows, BulkOptions options, boolean sequential) {
+        int parallelism = sequential ? 1 : Math.min(options.parallelism(), maxParallelism);
+        Semaphore permits = new Semaphore(parallelism);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<Chunk>> results = new ArrayList<>();
+        try (rows) {
+            Iterator<List<Object>> iterator = rows.iterator();
+            long index = 0;
+            long firstRow = 0;
+            while (iterator.hasNext() && !(options.failFast() && failed.get())) {
+                List<List<Object>> chunk = new ArrayList<>(Math.min(options.commitSize(), 1 << 16));
+                while (chunk.size() < options.commitSize() && iterator.hasNext()) {
+                    List<Object> row = iterator.next();
+                    // reusable holders are overwritten by the producer
+                    chunk.add(row instanceof QueryParams ? new ArrayList<>(row) : row);
+                }
+                long chunkIndex = index++;
+                long chunkFirstRow = firstRow;
+                firstRow += chunk.size();
+                if (parallelism == 1) {
+                    Chunk result = write(queryName, chunkIndex, chunkFirstRow, chunk, options.batchSize());
+                    failed.compareAndSet(false, result.failed());
+                    results.add(CompletableFuture.completedFuture(result));
+                    continue;
+                }
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for a connection");
+                }
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Chunk result = write(queryName, chunkIndex, chunkFirstRow, chunk, options.batchSize());
+                        failed.compareAndSet(false, result.failed());
+                        return result;
+                    } finally {
+                        permits.release();
+                    }
+                }, executor));
+            }
+        } finally {
+            // wait for running chunks even if reading the input failed
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        }
+        List<Chunk> chunks = new ArrayList<>(results.size());
+        for (CompletableFuture<Chunk> result : results) {
+            try {
+                chunks.add(result.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        return new BulkResult(chunks);
+    }
+
+    private Chunk write(String queryName, long index, long firstRow, List<List<Object>> rows, int batchSize) {
+        try {
+            return chunkWriter.write(queryName, index, firstRow, rows, batchSize);
+        } catch (RuntimeException e) {
+            return new Chunk(index, firstRow, rows.size(), 0, e);
+        }
+    }
+
+    @FunctionalInterface
+    interface ChunkWriter {
+        /**
+         * Write a chunk of rows in one transaction, which is rolled back on error.
+         *
+         * @param queryName Query name.
+         * @param index Chunk index.
+         * @param firstRow Index of the first row.
+         * @param rows Rows.
+         * @param batchSize JDBC batch size.
+         * @return Chunk result.
+         */
+        Chunk write(String queryName, long index, long firstRow, List<List<Object>> rows, int batchSize);
+    }
+}
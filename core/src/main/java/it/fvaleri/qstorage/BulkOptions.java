@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+/**
+ * Bulk write options.
+ * Setters can be chained and all values have sensible defaults.
+ */
+public class BulkOptions {
+    private int batchSize = 1_000;
+    private int commitSize = 10_000;
+    private int parallelism = 1;
+    private boolean failFast;
+
+    /**
+     * @return Number of rows in each JDBC batch.
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of rows in each JDBC batch.
+     * Defaults to 1000.
+     *
+     * @param batchSize Batch size.
+     * @return This options.
+     */
+    public BulkOptions batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @return Number of rows in each committed chunk.
+     */
+    public int commitSize() {
+        return commitSize;
+    }
+
+    /**
+     * Set the number of rows in each chunk, which is written in one transaction.
+     * A failed chunk is rolled back without affecting the other ones.
+     * Defaults to 10000.
+     *
+     * @param commitSize Commit size.
+     * @return This options.
+     */
+    public BulkOptions commitSize(int commitSize) {
+        if (commitSize < 1) {
+            throw new IllegalArgumentException("Invalid commit size");
+        }
+        this.commitSize = commitSize;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of chunks written concurrently.
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of chunks written concurrently, each one on its own pooled connection.
+     * It is capped by the pool size, and chunks may be committed out of order when greater than one.
+     * Defaults to 1, which writes all chunks on the calling thread, as it happens inside a transaction.
+     *
+     * @param parallelism Parallelism.
+     * @return This options.
+     */
+    public BulkOptions parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return True if no more chunks are written after the first failure.
+     */
+    public boolean failFast() {
+        return failFast;
+    }
+
+    /**
+     * Set whether no more chunks are written after the first failure.
+     * Chunks that are already running are completed.
+     * Defaults to false, which writes all chunks and reports the failed ones.
+     *
+     * @param failFast Fail fast.
+     * @return This options.
+     */
+    public BulkOptions failFast(boolean failFast) {
+        this.failFast = failFast;
+        return this;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Result of a bulk write with one entry for each chunk in input order.
+ * Chunks that were not written because of a previous failure in fail fast mode are not included.
+ *
+ * @param chunks Chunk results.
+ */
+public record BulkResult(List<Chunk> chunks) {
+    public BulkResult {
+        chunks = List.copyOf(chunks);
+    }
+
+    /**
+     * @return Number of input rows in all chunks.
+     */
+    public long rows() {
+        return chunks.stream().mapToLong(Chunk::rows).sum();
+    }
+
+    /**
+     * @return Number of written rows in committed chunks.
+     */
+    public long written() {
+        return chunks.stream().mapToLong(Chunk::written).sum();
+    }
+
+    /**
+     * @return Failed chunks.
+     */
+    public List<Chunk> failures() {
+        return chunks.stream().filter(Chunk::failed).collect(Collectors.toList());
+    }
+
+    /**
+     * @return True if all chunks were committed.
+     */
+    public boolean succeeded() {
+        return chunks.stream().noneMatch(Chunk::failed);
+    }
+
+    /**
+     * Result of a chunk of rows written in one transaction.
+     *
+     * @param index Chunk index.
+     * @param firstRow Index of the first input row in this chunk.
+     * @param rows Number of input rows.
+     * @param written Number of written rows (zero if failed).
+     * @param error Error that caused the rollback, or null if committed.
+     */
+    public record Chunk(long index, long firstRow, int rows, long written, RuntimeException error) {
+        /**
+         * @return True if the chunk was rolled back.
+         */
+        public boolean failed() {
+            return error != null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Watcher that reloads the query catalog of a storage when its properties file changes.
+ * Changes are reloaded once the file has been quiet for a short time, so that a file
+ * that is still being written is not loaded. When the reload fails, the error is logged
+ * and the storage keeps its current catalog.
+ */
+public final class CatalogWatcher implements AutoCloseable {
+    private static final System.Logger LOGGER = System.getLogger(CatalogWatcher.class.getPackageName());
+    private static final long QUIET_MS = 100;
+
+    private final QueryableStorage storage;
+    private final Path file;
+    private final WatchService watchService;
+    private final Thread watcher;
+
+    private CatalogWatcher(QueryableStorage storage, Path file) throws IOException {
+        this.storage = storage;
+        this.file = file;
+        this.watchService = file.getFileSystem().newWatchService();
+        // editors often replace the file, so creations are watched too
+        file.getParent().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watcher = new Thread(this::run, "qstorage-catalog-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    /**
+     * Start watching a properties file.
+     *
+     * @param storage Storage to reload.
+     * @param file Properties file with query templates and attributes.
+     * @return Catalog watcher.
+     */
+    public static CatalogWatcher watch(QueryableStorage storage, Path file) {
+        if (storage == null) {
+            throw new IllegalArgumentException("Invalid storage");
+        }
+        if (file == null || !Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("Invalid file");
+        }
+        try {
+            return new CatalogWatcher(storage, file.toAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException(format("Watch error: %s", e.getMessage()));
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean changed = changed(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= changed(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        try (InputStream input = Files.newInputStream(file)) {
+            Properties queries = new Properties();
+            queries.load(input);
+            storage.reload(queries);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(System.Logger.Level.WARNING, () -> format("Reload of %s failed: %s", file, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Query result stored by column in primitive vectors.
+ * Integer columns are stored as long, floating point columns as double,
+ * decimal columns as unscaled long at the column scale, and dates as epoch day int.
+ * Null values are tracked with one bitmap per column.
+ * Vectors may be longer than the row count, so only the first rowCount values are valid.
+ */
+public final class ColumnarResult {
+    /**
+     * Column vector kind.
+     */
+    public enum Kind { LONG, DOUBLE, DECIMAL, DATE, STRING }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Kind[] kinds;
+    private final int[] scales;
+    private final Object[] vectors;
+    private final BitSet[] nulls;
+    private int capacity;
+    private int rowCount;
+
+    ColumnarResult(List<Class<?>> columnTypes, int[] scales) {
+        this.kinds = new Kind[columnTypes.size()];
+        this.scales = scales;
+        this.vectors = new Object[kinds.length];
+        this.nulls = new BitSet[kinds.length];
+        this.capacity = INITIAL_CAPACITY;
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindOf(columnTypes.get(i));
+            vectors[i] = newVector(kinds[i], INITIAL_CAPACITY);
+            nulls[i] = new BitSet();
+        }
+    }
+
+    /**
+     * Read all remaining rows of a result set.
+     *
+     * @param resultSet Result set.
+     * @param columnTypes Result column types.
+     * @return Columnar result.
+     * @throws SQLException On read error.
+     */
+    static ColumnarResult from(ResultSet resultSet, List<Class<?>> columnTypes) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int[] scales = new int[columnTypes.size()];
+        for (int i = 0; i < scales.length; i++) {
+            if (kindOf(columnTypes.get(i)) == Kind.DECIMAL) {
+                scales[i] = metaData != null ? Math.max(metaData.getScale(i + 1), 0) : 0;
+            }
+        }
+        ColumnarResult result = new ColumnarResult(columnTypes, scales);
+        while (resultSet.next()) {
+            result.append(resultSet);
+        }
+        return result;
+    }
+
+    static Kind kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class || type == Integer.class || type == int.class
+                || type == Short.class || type == short.class) {
+            return Kind.LONG;
+        } else if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+            return Kind.DOUBLE;
+        } else if (type == BigDecimal.class) {
+            return Kind.DECIMAL;
+        } else if (type == LocalDate.class || type == Date.class) {
+            return Kind.DATE;
+        } else if (type == String.class) {
+            return Kind.STRING;
+        }
+        throw new IllegalArgumentException(format("Unsupported column type %s", type.getName()));
+    }
+
+    /**
+     * @return Number of rows.
+     */
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return Number of columns.
+     */
+    public int columnCount() {
+        return kinds.length;
+    }
+
+    /**
+     * @param column Column index (zero based).
+     * @return Column vector kind.
+     */
+    public Kind kind(int column) {
+        return kinds[column];
+    }
+
+    /**
+     * @param column Decimal column index (zero based).
+     * @return Number of fractional digits of the unscaled values.
+     */
+    public int scale(int column) {
+        checkKind(column, Kind.DECIMAL);
+        return scales[column];
+    }
+
+    /**
+     * @param column Column index (zero based).
+     * @param row Row index (zero based).
+     * @return True if the value is null.
+     */
+    public boolean isNull(int column, int row) {
+        return nulls[column].get(row);
+    }
+
+    /**
+     * @param column Long column index (zero based).
+     * @param row Row index (zero based).
+     * @return Value, or zero if null.
+     */
+    public long getLong(int column, int row) {
+        return longVector(column)[row];
+    }
+
+    /**
+     * @param column Double column index (zero based).
+     * @param row Row index (zero based).
+     * @return Value, or zero if null.
+     */
+    public double getDouble(int column, int row) {
+        return doubleVector(column)[row];
+    }
+
+    /**
+     * @param column Decimal column index (zero based).
+     * @param row Row index (zero based).
+     * @return Value, or null.
+     */
+    public BigDecimal getDecimal(int column, int row) {
+        return isNull(column, row) ? null : BigDecimal.valueOf(decimalVector(column)[row], scales[column]);
+    }
+
+    /**
+     * @param column Date column index (zero based).
+     * @param row Row index (zero based).
+     * @return Value, or null.
+     */
+    public LocalDate getDate(int column, int row) {
+        return isNull(column, row) ? null : LocalDate.ofEpochDay(dateVector(column)[row]);
+    }
+
+    /**
+     * @param column String column index (zero based).
+     * @param row Row index (zero based).
+     * @return Value, or null.
+     */
+    public String getString(int column, int row) {
+        return stringVector(column)[row];
+    }
+
+    /**
+     * @param column Long column index (zero based).
+     * @return Backing vector.
+     */
+    public long[] longVector(int column) {
+        checkKind(column, Kind.LONG);
+        return (long[]) vectors[column];
+    }
+
+    /**
+     * @param column Double column index (zero based).
+     * @return Backing vector.
+     */
+    public double[] doubleVector(int column) {
+        checkKind(column, Kind.DOUBLE);
+        return (double[]) vectors[column];
+    }
+
+    /**
+     * @param column Decimal column index (zero based).
+     * @return Backing vector of unscaled values.
+     */
+    public long[] decimalVector(int column) {
+        checkKind(column, Kind.DECIMAL);
+        return (long[]) vectors[column];
+    }
+
+    /**
+     * @param column Date column index (zero based).
+     * @return Backing vector of epoch days.
+     */
+    public int[] dateVector(int column) {
+        checkKind(column, Kind.DATE);
+        return (int[]) vectors[column];
+    }
+
+    /**
+     * @param column String column index (zero based).
+     * @return Backing vector.
+     */
+    public String[] stringVector(int column) {
+        checkKind(column, Kind.STRING);
+        return (String[]) vectors[column];
+    }
+
+    /**
+     * @param column Column index (zero based).
+     * @return Null bitmap where bit i is set if row i is null.
+     */
+    public BitSet nullBitmap(int column) {
+        return (BitSet) nulls[column].clone();
+    }
+
+    /**
+     * Sum the non null values of a long or decimal column.
+     * Decimal sums are returned as unscaled values at the column scale.
+     *
+     * @param column Column index (zero based).
+     * @return Sum.
+     */
+    public long sum(int column) {
+        if (kinds[column] != Kind.LONG && kinds[column] != Kind.DECIMAL) {
+            throw new IllegalArgumentException(format("Column %d is not a long or decimal column", column));
+        }
+        long[] vector = (long[]) vectors[column];
+        long sum = 0;
+        for (int i = 0; i < rowCount; i++) {
+            sum = Math.addExact(sum, vector[i]);
+        }
+        return sum;
+    }
+
+    void append(ResultSet resultSet) throws SQLException {
+        if (rowCount == capacity) {
+            grow();
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            int index = i + 1;
+            boolean isNull;
+            switch (kinds[i]) {
+                case LONG: {
+                    ((long[]) vectors[i])[rowCount] = resultSet.getLong(index);
+                    isNull = resultSet.wasNull();
+                    break;
+                }
+                case DOUBLE: {
+                    ((double[]) vectors[i])[rowCount] = resultSet.getDouble(index);
+                    isNull = resultSet.wasNull();
+                    break;
+                }
+                case DECIMAL: {
+                    BigDecimal value = resultSet.getBigDecimal(index);
+                    isNull = value == null;
+                    if (!isNull) {
+                        ((long[]) vectors[i])[rowCount] = value.setScale(scales[i]).unscaledValue().longValueExact();
+                    }
+                    break;
+                }
+                case DATE: {
+                    LocalDate value = resultSet.getObject(index, LocalDate.class);
+                    isNull = value == null;
+                    if (!isNull) {
+                        ((int[]) vectors[i])[rowCount] = (int) value.toEpochDay();
+                    }
+                    break;
+                }
+                default: {
+                    String value = resultSet.getString(index);
+                    ((String[]) vectors[i])[rowCount] = value;
+                    isNull = value == null;
+                    break;
+                }
+            }
+            if (isNull) {
+                nulls[i].set(rowCount);
+            }
+        }
+        rowCount++;
+    }
+
+    private void grow() {
+        capacity += capacity >> 1;
+        for (int i = 0; i < kinds.length; i++) {
+            Object vector = vectors[i];
+            if (vector instanceof long[]) {
+                vectors[i] = Arrays.copyOf((long[]) vector, capacity);
+            } else if (vector instanceof double[]) {
+                vectors[i] = Arrays.copyOf((double[]) vector, capacity);
+            } else if (vector instanceof int[]) {
+                vectors[i] = Arrays.copyOf((int[]) vector, capacity);
+            } else {
+                vectors[i] = Arrays.copyOf((String[]) vector, capacity);
+            }
+        }
+    }
+
+    private static Object newVector(Kind kind, int capacity) {
+        switch (kind) {
+            case LONG:
+            case DECIMAL:
+                return new long[capacity];
+            case DOUBLE:
+                return new double[capacity];
+            case DATE:
+                return new int[capacity];
+            default:
+                return new String[capacity];
+        }
+    }
+
+    private void checkKind(int column, Kind kind) {
+        if (kinds[column] != kind) {
+            throw new IllegalArgumentException(format("Column %d is %s, not %s", column, kinds[column], kind));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Lightweight connection pool where each connection has its own statement cache.
+ * Connections are created on demand up to the pool size and leased exclusively.
+ * A thread that already holds a lease gets the same connection back (reentrant).
+ * When created with a fixed connection, the pool has size one and never closes it.
+ * Statements are prepared when the connection is created, or on first use in lazy mode.
+ * When a statement cache size is set, the least recently used statements are closed
+ * each time a connection is returned, so statements are never evicted while in use.
+ * For the same reason, a reloaded catalog is applied to each connection when it is next leased,
+ * so in-flight executions keep using the catalog they started with.
+ */
+final class ConnectionPool implements AutoCloseable {
+    private final DataSource dataSource;
+    private final Connection fixedConn;
+    private volatile QueryCatalog catalog;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final boolean lazyPrepare;
+    private final int statementCacheSize;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle;
+    private final Set<PooledConnection> all;
+    private final Map<Thread, PooledConnection> owners;
+    private volatile boolean closed;
+
+    ConnectionPool(Connection conn, QueryCatalog catalog, StorageConfig config) {
+        this(null, conn, catalog, 1, Duration.ofMillis(Long.MAX_VALUE), config);
+    }
+
+    ConnectionPool(DataSource dataSource, QueryCatalog catalog, StorageConfig config) {
+        this(dataSource, null, catalog, config.poolSize(), config.acquireTimeout(), config);
+    }
+
+    private ConnectionPool(DataSource dataSource, Connection fixedConn, QueryCatalog catalog,
+                           int maxSize, Duration acquireTimeout, StorageConfig config) {
+        this.dataSource = dataSource;
+        this.fixedConn = fixedConn;
+        this.catalog = catalog;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeout.toMillis();
+        this.lazyPrepare = config.lazyPrepare();
+        this.statementCacheSize = config.statementCacheSize();
+        this.permits = new Semaphore(maxSize, true);
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.all = ConcurrentHashMap.newKeySet();
+        this.owners = new ConcurrentHashMap<>();
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Create the first connection eagerly, so that configuration errors are raised immediately.
+     */
+    void init() throws SQLException {
+        PooledConnection pc = create();
+        idle.push(pc);
+    }
+
+    PooledConnection acquire() {
+        Thread thread = Thread.currentThread();
+        PooledConnection owned = owners.get(thread);
+        if (owned != null) {
+            synchronized (owned) {
+                if (owned.owner == thread) {
+                    owned.holds++;
+                    return owned;
+                }
+            }
+        }
+        if (closed) {
+            throw new IllegalStateException("Storage closed");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException(format("Connection not available after %d ms", acquireTimeoutMs));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a connection");
+        }
+        try {
+            PooledConnection pc = idle.poll();
+            while (pc != null && pc.isClosed()) {
+                discard(pc);
+                pc = idle.poll();
+            }
+            if (pc == null) {
+                pc = create();
+            } else {
+                try {
+                    pc.reload(catalog, !lazyPrepare);
+                } catch (SQLException e) {
+                    discard(pc);
+                    throw e;
+                }
+            }
+            synchronized (pc) {
+                pc.owner = thread;
+                pc.holds = 1;
+            }
+            owners.put(thread, pc);
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw new RuntimeException(format("Connection error: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * @return Connection leased by the current thread, or null.
+     */
+    PooledConnection current() {
+        return owners.get(Thread.currentThread());
+    }
+
+    void release(PooledConnection pc) {
+        synchronized (pc) {
+            if (--pc.holds > 0) {
+                return;
+            }
+            owners.remove(pc.owner, pc);
+            pc.owner = null;
+        }
+        // statements are no longer in use, so they can be evicted
+        pc.trim(statementCacheSize);
+        if (closed || pc.isClosed()) {
+            discard(pc);
+        } else {
+            idle.push(pc);
+        }
+        permits.release();
+    }
+
+    /**
+     * @param next New catalog, which is applied to each connection when it is next leased.
+     */
+    void reload(QueryCatalog next) {
+        catalog = next;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (PooledConnection pc : all) {
+            discard(pc);
+        }
+        idle.clear();
+        owners.clear();
+    }
+
+    private PooledConnection create() throws SQLException {
+        Connection conn = fixedConn != null ? fixedConn : dataSource.getConnection();
+        PooledConnection pc = new PooledConnection(conn, catalog);
+        if (!lazyPrepare) {
+            try {
+                pc.prepareAll();
+            } catch (SQLException e) {
+                pc.close(fixedConn == null);
+                throw e;
+            }
+        }
+        all.add(pc);
+        return pc;
+    }
+
+    private void discard(PooledConnection pc) {
+        all.remove(pc);
+        pc.close(fixedConn == null);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects writes from concurrent callers and executes them in groups that share one commit.
+ * A background thread takes the first pending write, waits up to the window for more,
+ * and hands the group to the executor, which completes each future after the commit.
+ * Pending writes are executed when the committer is closed.
+ */
+final class GroupCommitter implements AutoCloseable {
+    static final int MAX_GROUP_SIZE = 1_000;
+    // the thread is stopped with a marker instead of an interrupt, which could break a running JDBC call
+    private static final Request STOP = new Request(null, null, null, 0);
+
+    private final long windowNanos;
+    private final Consumer<List<Request>> groupExecutor;
+    private final BlockingQueue<Request> queue;
+    private final Thread thread;
+    private boolean closed;
+
+    /**
+     * @param window Maximum time to wait for more writes after the first one.
+     * @param groupExecutor Executes a group of writes in one transaction and completes their futures.
+     */
+    GroupCommitter(Duration window, Consumer<List<Request>> groupExecutor) {
+        this.windowNanos = window.toNanos();
+        this.groupExecutor = groupExecutor;
+        this.queue = new LinkedBlockingQueue<>();
+        this.thread = new Thread(this::run, "qstorage-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    CompletableFuture<Integer> submit(String queryName, List<Object> queryParams) {
+        // reusable holders are overwritten by the caller
+        List<Object> params = queryParams instanceof QueryParams ? new ArrayList<>(queryParams) : queryParams;
+        Request request = new Request(queryName, params, new CompletableFuture<>(), System.nanoTime());
+        // a request enqueued after the stop marker would never be executed
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Storage closed");
+            }
+            queue.add(request);
+        }
+        return request.future();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // writes the thread did not take before stopping
+        drain();
+    }
+
+    private void run() {
+        boolean running = true;
+        while (running) {
+            List<Request> group = new ArrayList<>();
+            try {
+                Request first = queue.take();
+                if (first == STOP) {
+                    break;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (group.size() < MAX_GROUP_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        running = false;
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // execute what was collected
+            }
+            if (!group.isEmpty()) {
+                execute(group);
+            }
+        }
+    }
+
+    private void drain() {
+        List<Request> group = new ArrayList<>();
+        while (queue.drainTo(group, MAX_GROUP_SIZE) > 0) {
+            group.remove(STOP);
+            if (!group.isEmpty()) {
+                execute(group);
+            }
+            group = new ArrayList<>();
+        }
+    }
+
+    private void execute(List<Request> group) {
+        try {
+            groupExecutor.accept(group);
+        } catch (RuntimeException e) {
+            for (Request request : group) {
+                request.future().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @param future Future completed with the number of written rows after the commit.
+     * @param submitNanos Submission time.
+     */
+    record Request(String queryName, List<Object> queryParams, CompletableFuture<Integer> future, long submitNanos) { }
+}
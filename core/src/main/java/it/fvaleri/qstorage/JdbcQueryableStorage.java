@@ -4,53 +4,163 @@
  */
 package it.fvaleri.qstorage;
 
+import javax.sql.DataSource;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Savepoint;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.lang.String.format;
 
 /**
  * JDBC storage that supports read and write queries.
- * All queries are pre-loaded and cached as {@link PreparedStatement}.
+ * Connections are leased from a pool and each one caches queries as {@link PreparedStatement},
+ * so the storage can be shared by concurrent threads when backed by a {@link DataSource}.
  * Each result set is automatically closed after a read query execution.
+ * Streamed result sets are closed when the stream is exhausted or closed.
+ * Results of queries with the cache attribute can be cached, and they are invalidated
+ * when a write query touches one of their tables.
+ * Per-query metrics are recorded for all executions and can be exposed through JMX.
  */
 public class JdbcQueryableStorage implements QueryableStorage {
-    private final Map<String, PreparedStatement> prepStmts;
-    private final Map<String, AtomicLong> batchCounters;
-    private final List<ResultSet> resultSets;
+    // journal table statement keys, which cannot clash with query names
+    private static final String JOURNAL_SELECT = QueryCatalog.KEY_SEPARATOR + "journal.select";
+    private static final String JOURNAL_UPDATE = QueryCatalog.KEY_SEPARATOR + "journal.update";
+    private static final String JOURNAL_INSERT = QueryCatalog.KEY_SEPARATOR + "journal.insert";
 
-    JdbcQueryableStorage(Connection conn, Properties queries) {
+    private volatile QueryCatalog catalog;
+    private final ConnectionPool pool;
+    private final BatchWriter batchWriter;
+    private final BulkLoader bulkLoader;
+    private final GroupCommitter groupCommitter;
+    private final WriteJournal journal;
+    private final Set<ResultSet> resultSets;
+    private final Map<MapperKey, RowMapper<?>> recordMappers;
+    private final Map<String, ParamBinder> paramBinders;
+    private final Map<String, MultiGet> multiGets;
+    private final Map<String, AdaptiveBatchSize> adaptiveBatches;
+    private final StorageConfig config;
+    private final SlowQueryLog slowQueryLog;
+    private final Set<String> unexplainable;
+    private final AdmissionControl admissionControl;
+    private final QueryCache queryCache;
+    private final Executor executor;
+    private final ExecutorService defaultExecutor;
+    private final Semaphore asyncPermits;
+    private final StorageMetrics metrics;
+    private final boolean sharedMetrics;
+    private final long readMemoryBudget;
+    private final Path spillDir;
+    // journal applier thread only, negative until loaded from the journal table
+    private long journalCheckpoint = -1;
+
+    JdbcQueryableStorage(Connection conn, Properties queries, StorageConfig config) {
+        this(checkConnection(conn), null, loadQueries(queries), checkConfig(config), null, true);
+    }
+
+    JdbcQueryableStorage(DataSource dataSource, Properties queries, StorageConfig config) {
+        this(null, checkDataSource(dataSource), loadQueries(queries), checkConfig(config), null, true);
+    }
+
+    /**
+     * Create a storage node that records into shared metrics, which are registered by their owner.
+     * Only the node that receives writes can have a write-behind journal.
+     */
+    JdbcQueryableStorage(DataSource dataSource, QueryCatalog catalog, StorageConfig config,
+                         StorageMetrics metrics, boolean journaled) {
+        this(null, checkDataSource(dataSource), catalog, config, metrics, journaled);
+    }
+
+    private JdbcQueryableStorage(Connection conn, DataSource dataSource, QueryCatalog catalog,
+                                 StorageConfig config, StorageMetrics sharedMetrics, boolean journaled) {
+        this.catalog = catalog;
+        this.sharedMetrics = sharedMetrics != null;
+        this.readMemoryBudget = config.readMemoryBudget();
+        this.spillDir = config.spillDir();
+        this.pool = conn != null
+            ? new ConnectionPool(conn, catalog, config)
+            : new ConnectionPool(dataSource, catalog, config);
+        this.batchWriter = new BatchWriter(config.batchLinger(), this::executeBatch);
+        this.resultSets = ConcurrentHashMap.newKeySet();
+        this.recordMappers = new ConcurrentHashMap<>();
+        this.paramBinders = new ConcurrentHashMap<>();
+        this.multiGets = new ConcurrentHashMap<>();
+        this.adaptiveBatches = new ConcurrentHashMap<>();
+        this.config = config;
+        this.queryCache = config.cacheSize() > 0 ? new QueryCache(config.cacheSize(), config.cacheTtl()) : null;
+        this.defaultExecutor = config.executor() == null ? newDefaultExecutor(pool.maxSize()) : null;
+        this.executor = config.executor() == null ? defaultExecutor : config.executor();
+        this.asyncPermits = new Semaphore(pool.maxSize());
+        this.bulkLoader = new BulkLoader(executor, pool.maxSize(), this::writeChunk);
+        this.slowQueryLog = SlowQueryLog.enabled(config) ? new SlowQueryLog(config, this::explain, this::runAsync) : null;
+        this.unexplainable = ConcurrentHashMap.newKeySet();
+        this.admissionControl = new AdmissionControl(catalog, config.queueTimeout());
+        this.groupCommitter = config.groupCommitWindow().isZero()
+            ? null : new GroupCommitter(config.groupCommitWindow(), this::commitGroup);
+        this.metrics = this.sharedMetrics ? sharedMetrics : new StorageMetrics(catalog.names());
         try {
-            if (conn == null || conn.isClosed()) {
-                throw new IllegalArgumentException("Invalid connection");
-            }
-            if (queries == null || queries.isEmpty()) {
-                throw new IllegalArgumentException("Invalid queries");
-            }
-            this.prepStmts = new HashMap<>();
-            this.batchCounters = new HashMap<>();
-            this.resultSets = new ArrayList<>();
-            for (String key : queries.stringPropertyNames()) {
-                prepStmts.put(key, conn.prepareStatement(queries.getProperty(key)));
+            pool.init();
+            if (!this.sharedMetrics && config.jmxName() != null) {
+                metrics.register(config.jmxName());
             }
-            queries.clear();
+            // unapplied entries are replayed as soon as the journal is open
+            this.journal = journaled && config.journalDir() != null
+                ? new WriteJournal(config.journalDir(), config.journalSegmentSize(),
+                    config.journalSync(), this::applyJournal)
+                : null;
         } catch (SQLException e) {
+            close();
             throw new RuntimeException(format("Init error: %s", e.getMessage()));
+        } catch (RuntimeException e) {
+            close();
+            throw e;
         }
     }
 
@@ -65,37 +175,378 @@ public class JdbcQueryableStorage implements QueryableStorage {
         if (columnTypes == null || columnTypes.isEmpty()) {
             throw new IllegalArgumentException("Invalid column types");
         }
-        PreparedStatement prepStmt = prepStmts.get(queryName);
-        if (prepStmt == null) {
-            throw new IllegalArgumentException(format("Query %s not found", queryName));
-        }
-        if (queryParams != null && !queryParams.isEmpty()) {
-            for (int i = 0; i < queryParams.size(); i++) {
-                setQueryParam(prepStmt, i + 1, queryParams.get(i));
+        checkNoStreams(columnTypes);
+        if (!isCached(queryName)) {
+            long[] index = {0};
+            RowMapper<Row> rowMapper = resultSet -> new Row(index[0]++, readColumns(resultSet, columnTypes));
+            if (readMemoryBudget > 0 && SpillingRowList.supports(columnTypes)) {
+                checkQuery(queryName);
+                return read(queryName, rowMapper, queryParams, new SpillingRowList(readMemoryBudget, spillDir));
             }
+            return read(queryName, rowMapper, queryParams);
+        }
+        return cachedRead(queryName, List.copyOf(columnTypes), queryParams, () -> {
+            long[] index = {0};
+            return read(queryName, resultSet ->
+                new Row(index[0]++, Collections.unmodifiableList(readColumns(resultSet, columnTypes))), queryParams);
+        });
+    }
+
+    public <T> List<T> read(String queryName, RowMapper<T> rowMapper, List<Object> queryParams) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
         }
+        if (rowMapper == null) {
+            throw new IllegalArgumentException("Invalid row mapper");
+        }
+        checkQuery(queryName);
+        return read(queryName, rowMapper, queryParams, new ArrayList<>());
+    }
+
+    private <T> List<T> read(String queryName, RowMapper<T> rowMapper, List<Object> queryParams, List<T> rows) {
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
         try {
-            List<Row> rows = new ArrayList<>();
+            PreparedStatement prepStmt = pc.statement(queryName);
+            bindParams(queryName, prepStmt, queryParams);
             ResultSet resultSet = prepStmt.executeQuery();
             if (resultSet != null) {
                 resultSets.add(resultSet);
-                int index = 0;
-                while (resultSet.next()) {
-                    List<Object> columns = new ArrayList<>();
-                    for (int j = 0; j < columnTypes.size(); j++) {
-                        columns.add(resultSet.getObject(j + 1, columnTypes.get(j)));
+                try {
+                    while (resultSet.next()) {
+                        rows.add(rowMapper.map(resultSet));
                     }
-                    rows.add(new Row(index++, columns));
+                } finally {
+                    resultSet.close();
+                    resultSets.remove(resultSet);
                 }
-                resultSet.close();
-                resultSets.remove(resultSet);
             }
+            long nanos = System.nanoTime() - startNanos;
+            queryMetrics.recordRead(nanos, rows.size());
+            logIfSlow(queryName, queryParams, rows.size(), nanos);
             return rows;
         } catch (SQLException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            release(pc, limit);
+        }
+    }
+
+    public <T extends Record> List<T> read(String queryName, Class<T> recordType, List<Object> queryParams) {
+        if (recordType == null || !recordType.isRecord()) {
+            throw new IllegalArgumentException("Invalid record type");
+        }
+        MapperKey key = new MapperKey(queryName, recordType);
+        RowMapper<T> rowMapper = resultSet -> {
+            @SuppressWarnings("unchecked")
+            RowMapper<T> mapper = (RowMapper<T>) recordMappers.get(key);
+            if (mapper == null) {
+                mapper = RecordMapper.create(recordType, resultSet.getMetaData());
+                recordMappers.putIfAbsent(key, mapper);
+            }
+            return mapper.map(resultSet);
+        };
+        if (!isCached(queryName)) {
+            return read(queryName, rowMapper, queryParams);
+        }
+        return cachedRead(queryName, recordType, queryParams, () -> read(queryName, rowMapper, queryParams));
+    }
+
+    public Map<Object, List<Row>> readMany(String queryName, List<Class<?>> columnTypes, List<?> keys) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (columnTypes == null || columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("Invalid column types");
+        }
+        if (keys == null || keys.stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("Invalid keys");
+        }
+        checkNoStreams(columnTypes);
+        checkQuery(queryName);
+        MultiGet multiGet = multiGet(queryName, catalog);
+        Map<Object, List<Row>> rowsByKey = new LinkedHashMap<>();
+        for (Object key : keys) {
+            rowsByKey.putIfAbsent(key, new ArrayList<>());
+        }
+        if (rowsByKey.isEmpty()) {
+            return rowsByKey;
+        }
+        List<Object> distinctKeys = new ArrayList<>(rowsByKey.keySet());
+        Class<?> keyType = distinctKeys.get(0).getClass();
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        try {
+            multiGet = multiGet(queryName, pc.catalog());
+            for (int from = 0; from < distinctKeys.size(); from += MultiGet.MAX_BUCKET_SIZE) {
+                long startNanos = System.nanoTime();
+                int to = Math.min(from + MultiGet.MAX_BUCKET_SIZE, distinctKeys.size());
+                List<Object> chunk = distinctKeys.subList(from, to);
+                int bucketSize = MultiGet.bucketSize(chunk.size());
+                PreparedStatement prepStmt =
+                    pc.statement(multiGet.statementKey(bucketSize), multiGet.template(bucketSize));
+                for (int i = 0; i < bucketSize; i++) {
+                    setQueryParam(prepStmt, i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                }
+                int rows = 0;
+                ResultSet resultSet = prepStmt.executeQuery();
+                resultSets.add(resultSet);
+                try {
+                    // the key is selected last, after all the columns of the template
+                    int keyColumn = resultSet.getMetaData().getColumnCount();
+                    while (resultSet.next()) {
+                        List<Row> keyRows = rowsByKey.get(resultSet.getObject(keyColumn, keyType));
+                        if (keyRows == null) {
+                            // rows of keys that were not requested are ignored
+                            continue;
+                        }
+                        keyRows.add(new Row(keyRows.size(), readColumns(resultSet, columnTypes)));
+                        rows++;
+                    }
+                } finally {
+                    resultSet.close();
+                    resultSets.remove(resultSet);
+                }
+                long nanos = System.nanoTime() - startNanos;
+                queryMetrics.recordRead(nanos, rows);
+                // the catalog template has one parameter, so the plan is explained with the first key
+                logIfSlow(queryName, List.of(chunk.get(0)), rows, nanos);
+            }
+            return rowsByKey;
+        } catch (SQLException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            release(pc, limit);
+        }
+    }
+
+    public ColumnarResult readColumnar(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (columnTypes == null || columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("Invalid column types");
+        }
+        columnTypes.forEach(ColumnarResult::kindOf);
+        checkQuery(queryName);
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
+        try {
+            PreparedStatement prepStmt = pc.statement(queryName);
+            bindParams(queryName, prepStmt, queryParams);
+            ResultSet resultSet = prepStmt.executeQuery();
+            ColumnarResult result;
+            if (resultSet == null) {
+                result = new ColumnarResult(columnTypes, new int[columnTypes.size()]);
+            } else {
+                resultSets.add(resultSet);
+                try {
+                    result = ColumnarResult.from(resultSet, columnTypes);
+                } finally {
+                    resultSet.close();
+                    resultSets.remove(resultSet);
+                }
+            }
+            long nanos = System.nanoTime() - startNanos;
+            queryMetrics.recordRead(nanos, result.rowCount());
+            logIfSlow(queryName, queryParams, result.rowCount(), nanos);
+            return result;
+        } catch (SQLException | ArithmeticException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            release(pc, limit);
+        }
+    }
+
+    public Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        return stream(queryName, columnTypes, queryParams, 0);
+    }
+
+    public Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams, int fetchSize) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (columnTypes == null || columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("Invalid column types");
+        }
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Invalid fetch size");
+        }
+        checkQuery(queryName);
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
+        boolean leased = false;
+        try {
+            PreparedStatement prepStmt = pc.statement(queryName);
+            bindParams(queryName, prepStmt, queryParams);
+            prepStmt.setFetchSize(fetchSize);
+            ResultSet resultSet = prepStmt.executeQuery();
+            if (resultSet == null) {
+                queryMetrics.recordRead(System.nanoTime() - startNanos, 0);
+                return Stream.empty();
+            }
+            resultSets.add(resultSet);
+            RowSpliterator spliterator = new RowSpliterator(queryName, pc, limit, resultSet, columnTypes, startNanos);
+            leased = true;
+            return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+        } catch (SQLException e) {
+            queryMetrics.recordError();
             throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            if (!leased) {
+                release(pc, limit);
+            }
         }
     }
 
+    public long readLob(String queryName, List<Object> queryParams, WritableByteChannel channel) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (channel == null || !channel.isOpen()) {
+            throw new IllegalArgumentException("Invalid channel");
+        }
+        checkQuery(queryName);
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
+        try {
+            PreparedStatement prepStmt = pc.statement(queryName);
+            bindParams(queryName, prepStmt, queryParams);
+            long bytes = 0;
+            long rows = 0;
+            ResultSet resultSet = prepStmt.executeQuery();
+            if (resultSet != null) {
+                resultSets.add(resultSet);
+                try {
+                    boolean characters = LobStreams.isCharacterType(resultSet.getMetaData().getColumnType(1));
+                    while (resultSet.next()) {
+                        bytes += LobStreams.transfer(resultSet, 1, characters, channel);
+                        rows++;
+                    }
+                } finally {
+                    resultSet.close();
+                    resultSets.remove(resultSet);
+                }
+            }
+            queryMetrics.recordRead(System.nanoTime() - startNanos, rows);
+            return bytes;
+        } catch (SQLException | IOException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            release(pc, limit);
+        }
+    }
+
+    public Iterator<Page> readPages(String queryName, List<Class<?>> columnTypes, Object afterKey, int pageSize) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (columnTypes == null || columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("Invalid column types");
+        }
+        if (afterKey == null) {
+            throw new IllegalArgumentException("Invalid start key");
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size");
+        }
+        checkNoStreams(columnTypes);
+        checkQuery(queryName);
+        return new PageIterator(queryName, List.copyOf(columnTypes), afterKey, pageSize);
+    }
+
+    public List<Row> readParallel(String queryName, List<Class<?>> columnTypes,
+                                  long fromKey, long toKey, int partitions) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (columnTypes == null || columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("Invalid column types");
+        }
+        if (fromKey >= toKey || toKey - fromKey < 0) {
+            throw new IllegalArgumentException("Invalid key range");
+        }
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Invalid partitions");
+        }
+        checkNoStreams(columnTypes);
+        checkQuery(queryName);
+        long span = toKey - fromKey;
+        int n = (int) Math.min(Math.min(partitions, pool.maxSize()), span);
+        List<List<Object>> ranges = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            ranges.add(List.of(rangeBound(fromKey, span, n, i), rangeBound(fromKey, span, n, i + 1)));
+        }
+        List<Row> rows = new ArrayList<>();
+        if (n == 1 || pool.current() != null) {
+            // a leased connection cannot be shared with other threads, nor can its transaction
+            for (List<Object> range : ranges) {
+                rows.addAll(read(queryName, columnTypes, range));
+            }
+        } else {
+            List<CompletableFuture<List<Row>>> futures = new ArrayList<>(n);
+            for (List<Object> range : ranges) {
+                futures.add(supplyAsync(() -> read(queryName, columnTypes, range)));
+            }
+            try {
+                for (CompletableFuture<List<Row>> future : futures) {
+                    rows.addAll(future.join());
+                }
+            } catch (CompletionException e) {
+                futures.forEach(future -> future.cancel(false));
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        List<Row> result = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            result.add(new Row(result.size(), row.columns()));
+        }
+        return result;
+    }
+
+    /**
+     * @return True if the calling thread holds a connection, for example in a transaction.
+     */
+    boolean holdsConnection() {
+        return pool.current() != null;
+    }
+
+    private static long rangeBound(long fromKey, long span, int partitions, int index) {
+        return fromKey + span / partitions * index + Math.min(index, span % partitions);
+    }
+
+    public CompletableFuture<List<Row>> readAsync(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        return supplyAsync(() -> read(queryName, columnTypes, queryParams));
+    }
+
     public int write(String queryName) {
         return write(queryName, null, 1);
     }
@@ -108,25 +559,323 @@ public class JdbcQueryableStorage implements QueryableStorage {
         if (queryName == null || queryName.trim().isEmpty()) {
             throw new IllegalArgumentException("Invalid query name");
         }
-        PreparedStatement prepStmt = prepStmts.get(queryName);
-        if (prepStmt == null) {
-            throw new IllegalArgumentException(format("Query %s not found", queryName));
+        checkQuery(queryName);
+        if (batchSize == ADAPTIVE_BATCH_SIZE) {
+            batchSize = adaptiveBatches.computeIfAbsent(queryName, k -> new AdaptiveBatchSize(
+                config.adaptiveBatchLatency(), config.minAdaptiveBatchSize(), config.maxAdaptiveBatchSize())).size();
         }
-        if (queryParams != null && !queryParams.isEmpty()) {
-            for (int i = 0; i < queryParams.size(); i++) {
-                setQueryParam(prepStmt, i + 1, queryParams.get(i));
+        if (journal != null && pool.current() == null) {
+            // batched writes too, so that all journaled writes are applied in order
+            return journalWrite(queryName, queryParams);
+        }
+        if (batchSize > 1) {
+            PooledConnection current = pool.current();
+            if (current != null && current.transaction != null) {
+                return transactionBatch(current, queryName, queryParams, batchSize);
             }
+            return batchWriter.add(queryName, queryParams, batchSize);
         }
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
         try {
-            addBatch(queryName, batchSize);
-            return batchSize > 1 ? executeBatch(queryName, batchSize) : prepStmt.executeUpdate();
+            PreparedStatement prepStmt = pc.statement(queryName);
+            bindParams(queryName, prepStmt, queryParams);
+            int rows = prepStmt.executeUpdate();
+            long nanos = System.nanoTime() - startNanos;
+            queryMetrics.recordWrite(nanos, rows);
+            logIfSlow(queryName, queryParams, rows, nanos);
+            return rows;
         } catch (SQLException e) {
+            queryMetrics.recordError();
             throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            invalidateCache(pc, queryName);
+            release(pc, limit);
+        }
+    }
+
+    public <K> K writeReturningKey(String queryName, List<Object> queryParams, Class<K> keyType) {
+        List<K> keys = writeReturningKeys(queryName, Collections.singletonList(queryParams), keyType, false);
+        return keys.get(0);
+    }
+
+    public <K> List<K> writeBatchReturningKeys(String queryName, List<List<Object>> rows, Class<K> keyType) {
+        if (rows == null || rows.isEmpty()) {
+            throw new IllegalArgumentException("Invalid rows");
+        }
+        return writeReturningKeys(queryName, rows, keyType, true);
+    }
+
+    /**
+     * Update counts map generated keys back to rows, because rows that are not written have no key.
+     */
+    private <K> List<K> writeReturningKeys(String queryName, List<List<Object>> rows, Class<K> keyType, boolean batch) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
         }
+        if (keyType == null) {
+            throw new IllegalArgumentException("Invalid key type");
+        }
+        checkQuery(queryName);
+        awaitJournal();
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = pc.statement(queryName + QueryCatalog.KEY_SEPARATOR + "keys",
+                pc.catalog().template(queryName), true);
+            int[] updateCounts;
+            if (batch) {
+                for (List<Object> params : rows) {
+                    bindParams(queryName, prepStmt, params);
+                    prepStmt.addBatch();
+                }
+                updateCounts = prepStmt.executeBatch();
+            } else {
+                bindParams(queryName, prepStmt, rows.get(0));
+                updateCounts = new int[] {prepStmt.executeUpdate()};
+            }
+            List<K> keys = new ArrayList<>(rows.size());
+            int written = 0;
+            try (ResultSet resultSet = prepStmt.getGeneratedKeys()) {
+                for (int updateCount : updateCounts) {
+                    boolean hasKey = updateCount > 0 || updateCount == PreparedStatement.SUCCESS_NO_INFO;
+                    keys.add(hasKey && resultSet.next() ? resultSet.getObject(1, keyType) : null);
+                    written += Math.max(updateCount, 0);
+                }
+            }
+            if (batch) {
+                queryMetrics.recordBatch(System.nanoTime() - startNanos, rows.size(), written);
+            } else {
+                queryMetrics.recordWrite(System.nanoTime() - startNanos, written);
+            }
+            return keys;
+        } catch (SQLException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            if (batch && prepStmt != null) {
+                try {
+                    prepStmt.clearBatch();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            invalidateCache(pc, queryName);
+            release(pc, limit);
+        }
+    }
+
+    public BulkResult writeAll(String queryName, Stream<List<Object>> rows) {
+        return writeAll(queryName, rows, new BulkOptions());
+    }
+
+    public BulkResult writeAll(String queryName, Stream<List<Object>> rows, BulkOptions options) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        if (rows == null) {
+            throw new IllegalArgumentException("Invalid rows");
+        }
+        if (options == null) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        checkQuery(queryName);
+        awaitJournal();
+        // chunks of a transaction must run on its leased connection
+        return bulkLoader.load(queryName, rows, options, pool.current() != null);
+    }
+
+    public CompletableFuture<Integer> writeAsync(String queryName, List<Object> queryParams) {
+        if (journal != null) {
+            return CompletableFuture.completedFuture(write(queryName, queryParams));
+        }
+        if (groupCommitter == null) {
+            return supplyAsync(() -> write(queryName, queryParams));
+        }
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        checkQuery(queryName);
+        return groupCommitter.submit(queryName, queryParams);
+    }
+
+    public <T> T inTransaction(Function<QueryableStorage, T> work) {
+        if (work == null) {
+            throw new IllegalArgumentException("Invalid transaction");
+        }
+        awaitJournal();
+        PooledConnection pc = pool.acquire();
+        try {
+            if (pc.transaction != null) {
+                // nested transactions join the outer one
+                return work.apply(this);
+            }
+            Connection conn = pc.connection();
+            boolean autoCommit;
+            try {
+                autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+            } catch (SQLException e) {
+                throw new RuntimeException(format("Transaction failed: %s", e.getMessage()));
+            }
+            pc.transaction = new HashSet<>();
+            pc.batches = new LinkedHashMap<>();
+            try {
+                T result = work.apply(this);
+                flushTransactionBatches(pc, null);
+                conn.commit();
+                return result;
+            } catch (SQLException e) {
+                rollback(conn);
+                throw new RuntimeException(format("Transaction failed: %s", e.getMessage()));
+            } catch (RuntimeException | Error e) {
+                rollback(conn);
+                throw e;
+            } finally {
+                pc.transaction.forEach(this::invalidateCache);
+                pc.transaction = null;
+                // discarded on rollback
+                pc.batches = null;
+                try {
+                    conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    public int flush() {
+        PooledConnection pc = pool.current();
+        int rows = pc != null && pc.transaction != null ? flushTransactionBatches(pc, null) : 0;
+        rows += batchWriter.flush();
+        if (journal != null) {
+            journal.awaitApplied();
+        }
+        return rows;
+    }
+
+    public int flush(String queryName) {
+        if (queryName == null || queryName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid query name");
+        }
+        checkQuery(queryName);
+        PooledConnection pc = pool.current();
+        int rows = pc != null && pc.transaction != null ? flushTransactionBatches(pc, queryName) : 0;
+        rows += batchWriter.flush(queryName);
+        if (journal != null) {
+            journal.awaitApplied();
+        }
+        return rows;
+    }
+
+    public synchronized void reload(Properties queries) {
+        QueryCatalog next = loadQueries(queries);
+        checkCatalog(next);
+        swapCatalog(next);
+    }
+
+    /**
+     * Prepare the added and changed queries on one connection, so that invalid templates are rejected
+     * before the swap. In lazy mode, they are reported on first use as on startup.
+     *
+     * @param next New catalog.
+     */
+    void checkCatalog(QueryCatalog next) {
+        if (config.lazyPrepare()) {
+            return;
+        }
+        QueryCatalog current = catalog;
+        PooledConnection pc = pool.acquire();
+        try {
+            for (String queryName : next.names()) {
+                if (!current.sameQuery(next, queryName)) {
+                    try {
+                        pc.connection().prepareStatement(next.template(queryName)).close();
+                    } catch (SQLException e) {
+                        throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+                    }
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Connections switch to the new catalog when they are next leased,
+     * while state derived from removed or changed queries is dropped.
+     *
+     * @param next New catalog.
+     */
+    synchronized void swapCatalog(QueryCatalog next) {
+        QueryCatalog previous = catalog;
+        Set<String> stale = new HashSet<>();
+        for (String queryName : previous.names()) {
+            if (!previous.sameQuery(next, queryName)) {
+                stale.add(queryName);
+                batchWriter.flush(queryName);
+            }
+        }
+        if (journal != null && !stale.isEmpty()) {
+            journal.awaitApplied();
+        }
+        metrics.add(next.names());
+        admissionControl.reload(next);
+        pool.reload(next);
+        catalog = next;
+        // mappers hold the column positions of the previous select list
+        recordMappers.keySet().removeIf(key -> stale.contains(key.queryName()));
+        for (String queryName : stale) {
+            multiGets.remove(queryName);
+            paramBinders.remove(queryName);
+            unexplainable.remove(queryName);
+            if (queryCache != null) {
+                queryCache.invalidate(previous.tables(queryName));
+            }
+        }
+    }
+
+    public StorageMetrics metrics() {
+        return metrics;
     }
 
     @Override
-    public void close() throws Exception {
+    public void close() {
+        RuntimeException flushError = null;
+        try {
+            if (batchWriter != null) {
+                batchWriter.close();
+            }
+        } catch (RuntimeException e) {
+            flushError = e;
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (RuntimeException e) {
+            // raised after the resources are released
+            if (flushError == null) {
+                flushError = e;
+            }
+        }
         try {
             if (resultSets != null && !resultSets.isEmpty()) {
                 for (ResultSet rs : resultSets) {
@@ -134,21 +883,267 @@ public class JdbcQueryableStorage implements QueryableStorage {
                 }
                 resultSets.clear();
             }
-            if (batchCounters != null && !batchCounters.isEmpty()) {
-                batchCounters.clear();
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdown();
             }
-            if (prepStmts != null && !prepStmts.isEmpty()) {
-                for (PreparedStatement ps : prepStmts.values()) {
-                    ps.close();
-                }
-                prepStmts.clear();
+            if (pool != null) {
+                pool.close();
+            }
+            if (metrics != null && !sharedMetrics) {
+                metrics.unregister();
             }
         } catch (Exception e) {
             // ignore
         }
+        if (flushError != null) {
+            throw flushError;
+        }
+    }
+
+    private static Connection checkConnection(Connection conn) {
+        try {
+            if (conn == null || conn.isClosed()) {
+                throw new IllegalArgumentException("Invalid connection");
+            }
+            return conn;
+        } catch (SQLException e) {
+            throw new RuntimeException(format("Init error: %s", e.getMessage()));
+        }
+    }
+
+    private static DataSource checkDataSource(DataSource dataSource) {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("Invalid data source");
+        }
+        return dataSource;
+    }
+
+    static StorageConfig checkConfig(StorageConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("Invalid config");
+        }
+        return config;
+    }
+
+    static QueryCatalog loadQueries(Properties queries) {
+        QueryCatalog catalog = QueryCatalog.load(queries);
+        queries.clear();
+        return catalog;
     }
 
-    private void setQueryParam(PreparedStatement prepStmt, int index, Object param) {
+    /**
+     * Virtual threads are used when the runtime supports them (Java 21+),
+     * otherwise there is one daemon thread for each pooled connection.
+     */
+    private static ExecutorService newDefaultExecutor(int poolSize) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newFixedThreadPool(poolSize, task -> {
+                Thread thread = new Thread(task, "qstorage-async-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Tasks wait for a permit instead of a connection, so that they queue up
+     * rather than failing with a pool acquire timeout when there are many of them.
+     */
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                asyncPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a connection");
+            }
+            try {
+                return task.get();
+            } finally {
+                asyncPermits.release();
+            }
+        }, executor);
+    }
+
+    private AdmissionControl.Limit admit(String queryName) {
+        try {
+            return admissionControl.acquire(queryName);
+        } catch (RejectedExecutionException e) {
+            metrics.metrics(queryName).recordRejection();
+            throw e;
+        }
+    }
+
+    /**
+     * Acquire a connection after admission, so that executions waiting for admission do not hold one.
+     *
+     * @param limit Admitting limit, which is released with the connection.
+     */
+    private PooledConnection acquire(AdmissionControl.Limit limit) {
+        try {
+            return pool.acquire();
+        } catch (RuntimeException e) {
+            admissionControl.release(limit);
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection pc, AdmissionControl.Limit limit) {
+        pool.release(pc);
+        admissionControl.release(limit);
+    }
+
+    private void runAsync(Runnable task) {
+        try {
+            supplyAsync(() -> {
+                task.run();
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private void logIfSlow(String queryName, List<?> queryParams, long rows, long elapsedNanos) {
+        if (slowQueryLog != null) {
+            slowQueryLog.record(queryName, queryParams, rows, elapsedNanos);
+        }
+    }
+
+    /**
+     * The plan is not captured again for queries that failed to explain.
+     *
+     * @return Plan lines, or null if not supported.
+     */
+    private String explain(String queryName, List<Object> queryParams) {
+        if (unexplainable.contains(queryName)) {
+            return null;
+        }
+        PooledConnection pc = null;
+        try {
+            pc = pool.acquire();
+            try (PreparedStatement prepStmt = pc.connection().prepareStatement("EXPLAIN " + pc.catalog().template(queryName))) {
+                for (int i = 0; i < queryParams.size(); i++) {
+                    prepStmt.setObject(i + 1, queryParams.get(i));
+                }
+                StringJoiner plan = new StringJoiner(System.lineSeparator());
+                try (ResultSet resultSet = prepStmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        plan.add(resultSet.getString(1));
+                    }
+                }
+                return plan.toString();
+            }
+        } catch (SQLException e) {
+            unexplainable.add(queryName);
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            if (pc != null) {
+                pool.release(pc);
+            }
+        }
+    }
+
+    /**
+     * Reads in a transaction may see uncommitted writes, so they are never cached.
+     */
+    private boolean isCached(String queryName) {
+        if (queryCache == null || !catalog.booleanAttribute(queryName, QueryCatalog.ATTR_CACHE)) {
+            return false;
+        }
+        PooledConnection pc = pool.current();
+        return pc == null || pc.transaction == null;
+    }
+
+    /**
+     * The table version is taken before executing the query, so that a concurrent write
+     * that completes after the query makes the new entry stale.
+     * Cached results are shared by all callers, so they are unmodifiable.
+     */
+    private <T> List<T> cachedRead(String queryName, Object resultType, List<Object> queryParams, Supplier<List<T>> loader) {
+        List<Object> params = queryParams != null ? Arrays.asList(queryParams.toArray()) : List.of();
+        QueryCache.Key key = new QueryCache.Key(queryName, resultType, params);
+        Set<String> tables = catalog.tables(queryName);
+        @SuppressWarnings("unchecked")
+        List<T> cached = (List<T>) queryCache.get(key, tables);
+        if (cached != null) {
+            metrics.metrics(queryName).recordCacheHit();
+            return cached;
+        }
+        long version = queryCache.version(tables);
+        List<T> result = Collections.unmodifiableList(loader.get());
+        queryCache.put(key, version, result);
+        return result;
+    }
+
+    private void invalidateCache(String queryName) {
+        if (queryCache != null) {
+            queryCache.invalidate(catalog.tables(queryName));
+        }
+    }
+
+    /**
+     * Writes in a transaction are invalidated again when it ends,
+     * because entries cached before the commit may hold the old values.
+     */
+    private void invalidateCache(PooledConnection pc, String queryName) {
+        if (queryCache != null) {
+            queryCache.invalidate(catalog.tables(queryName));
+            if (pc.transaction != null) {
+                pc.transaction.add(queryName);
+            }
+        }
+    }
+
+    /**
+     * Multi-get templates are derived again when the query template is reloaded.
+     */
+    private MultiGet multiGet(String queryName, QueryCatalog catalog) {
+        String template = catalog.template(queryName);
+        if (template == null) {
+            throw new IllegalArgumentException(format("Query %s not found", queryName));
+        }
+        MultiGet multiGet = multiGets.get(queryName);
+        if (multiGet == null || !multiGet.derivedFrom(template)) {
+            multiGet = MultiGet.of(queryName, template);
+            multiGets.put(queryName, multiGet);
+        }
+        return multiGet;
+    }
+
+    private void checkQuery(String queryName) {
+        if (!catalog.contains(queryName)) {
+            throw new IllegalArgumentException(format("Query %s not found", queryName));
+        }
+    }
+
+    private static List<Object> readColumns(ResultSet resultSet, List<Class<?>> columnTypes) throws SQLException {
+        List<Object> columns = new ArrayList<>(columnTypes.size());
+        for (int j = 0; j < columnTypes.size(); j++) {
+            Class<?> columnType = columnTypes.get(j);
+            if (columnType == InputStream.class) {
+                columns.add(resultSet.getBinaryStream(j + 1));
+            } else if (columnType == Reader.class) {
+                columns.add(resultSet.getCharacterStream(j + 1));
+            } else {
+                columns.add(resultSet.getObject(j + 1, columnType));
+            }
+        }
+        return columns;
+    }
+
+    private static void checkNoStreams(List<Class<?>> columnTypes) {
+        if (columnTypes.contains(InputStream.class) || columnTypes.contains(Reader.class)) {
+            throw new IllegalArgumentException("Invalid column types: LOB streams require stream mode");
+        }
+    }
+
+    static void setQueryParam(PreparedStatement prepStmt, int index, Object param) {
         try {
             if (param == null) {
                 prepStmt.setNull(index, Types.NULL);
@@ -170,33 +1165,569 @@ public class JdbcQueryableStorage implements QueryableStorage {
                 prepStmt.setBinaryStream(index,
                     new ByteArrayInputStream(((byte[]) param)),
                     ((byte[]) param).length);
+            } else if (param instanceof ByteBuffer) {
+                prepStmt.setBinaryStream(index, LobStreams.of((ByteBuffer) param), ((ByteBuffer) param).remaining());
+            } else if (param instanceof InputStream) {
+                prepStmt.setBinaryStream(index, (InputStream) param);
+            } else if (param instanceof Reader) {
+                prepStmt.setCharacterStream(index, (Reader) param);
+            } else if (param instanceof Path) {
+                prepStmt.setBinaryStream(index, LobStreams.of((Path) param), Files.size((Path) param));
             } else {
                 throw new IllegalArgumentException("Unsupported data type for query parameter");
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void addBatch(String queryName, int batchSize) throws SQLException {
-        if (batchSize > 1) {
-            PreparedStatement prepStmt = prepStmts.get(queryName);
-            prepStmt.addBatch();
-            batchCounters.putIfAbsent(queryName, new AtomicLong(0));
-            batchCounters.get(queryName).incrementAndGet();
+    /**
+     * Parameter holders bind primitives directly, while lists are bound
+     * by the precompiled binder of the query, which is created on the first call.
+     */
+    private void bindParams(String queryName, PreparedStatement prepStmt, List<Object> queryParams) {
+        if (queryParams instanceof QueryParams) {
+            ((QueryParams) queryParams).bind(prepStmt);
+        } else if (queryParams != null && !queryParams.isEmpty()) {
+            ParamBinder binder = paramBinders.get(queryName);
+            if (binder == null) {
+                binder = ParamBinder.of(queryParams);
+                paramBinders.putIfAbsent(queryName, binder);
+            }
+            binder.bind(prepStmt, queryParams);
+        }
+    }
+
+    static void setQueryParams(PreparedStatement prepStmt, List<Object> queryParams) {
+        if (queryParams != null && !queryParams.isEmpty()) {
+            for (int i = 0; i < queryParams.size(); i++) {
+                setQueryParam(prepStmt, i + 1, queryParams.get(i));
+            }
+        }
+    }
+
+    /**
+     * Batched writes in a transaction are buffered on its connection instead of the batch writer,
+     * so that they are committed or rolled back with the transaction.
+     */
+    private int transactionBatch(PooledConnection pc, String queryName, List<Object> queryParams, int batchSize) {
+        List<List<Object>> batch = pc.batches.computeIfAbsent(queryName, k -> new ArrayList<>());
+        batch.add(queryParams != null ? new ArrayList<>(queryParams) : List.of());
+        if (batch.size() < batchSize) {
+            return 0;
+        }
+        pc.batches.remove(queryName);
+        return executeBatch(queryName, batch);
+    }
+
+    /**
+     * @param queryName Query name, or null for all queries.
+     * @return Number of written rows.
+     */
+    private int flushTransactionBatches(PooledConnection pc, String queryName) {
+        int rows = 0;
+        for (String name : new ArrayList<>(pc.batches.keySet())) {
+            if (queryName == null || queryName.equals(name)) {
+                rows += executeBatch(name, pc.batches.remove(name));
+            }
         }
+        return rows;
     }
 
-    private int executeBatch(String queryName, int batchSize) throws SQLException {
-        AtomicLong counter = batchCounters.get(queryName);
-        int result = 0;
-        if (counter.get() == batchSize) {
-            PreparedStatement prepStmt = prepStmts.get(queryName);
+    private int executeBatch(String queryName, List<List<Object>> batch) {
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        long startNanos = System.nanoTime();
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = pc.statement(queryName);
+            for (List<Object> params : batch) {
+                bindParams(queryName, prepStmt, params);
+                prepStmt.addBatch();
+            }
             int[] updateCounts = prepStmt.executeBatch();
-            prepStmt.clearBatch();
-            batchCounters.remove(queryName);
-            result = Arrays.stream(updateCounts).sum();
+            int rows = Arrays.stream(updateCounts).sum();
+            long nanos = System.nanoTime() - startNanos;
+            queryMetrics.recordBatch(nanos, batch.size(), rows);
+            AdaptiveBatchSize adaptiveBatch = adaptiveBatches.get(queryName);
+            if (adaptiveBatch != null) {
+                adaptiveBatch.record(batch.size(), nanos);
+            }
+            return rows;
+        } catch (SQLException e) {
+            queryMetrics.recordError();
+            throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        } finally {
+            if (prepStmt != null) {
+                try {
+                    prepStmt.clearBatch();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            invalidateCache(pc, queryName);
+            release(pc, limit);
+        }
+    }
+
+    /**
+     * Auto-commit is disabled while the chunk is written, and restored before releasing the connection.
+     * Inside a transaction, the chunk is rolled back to a savepoint on error and committed with the transaction.
+     */
+    private BulkResult.Chunk writeChunk(String queryName, long index, long firstRow,
+                                        List<List<Object>> rows, int batchSize) {
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        AdmissionControl.Limit limit = admit(queryName);
+        PooledConnection pc = acquire(limit);
+        Connection conn = pc.connection();
+        PreparedStatement prepStmt = null;
+        Boolean autoCommit = null;
+        Savepoint savepoint = null;
+        try {
+            if (pc.transaction != null) {
+                savepoint = conn.setSavepoint();
+            } else {
+                autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+            }
+            prepStmt = pc.statement(queryName);
+            long written = 0;
+            for (int start = 0; start < rows.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, rows.size());
+                long startNanos = System.nanoTime();
+                for (int i = start; i < end; i++) {
+                    bindParams(queryName, prepStmt, rows.get(i));
+                    prepStmt.addBatch();
+                }
+                int batchWritten = Arrays.stream(prepStmt.executeBatch()).sum();
+                queryMetrics.recordBatch(System.nanoTime() - startNanos, end - start, batchWritten);
+                written += batchWritten;
+            }
+            if (savepoint == null) {
+                conn.commit();
+            }
+            return new BulkResult.Chunk(index, firstRow, rows.size(), written, null);
+        } catch (SQLException | RuntimeException e) {
+            queryMetrics.recordError();
+            try {
+                if (savepoint != null) {
+                    conn.rollback(savepoint);
+                } else if (autoCommit != null) {
+                    conn.rollback();
+                }
+            } catch (SQLException re) {
+                // ignore
+            }
+            RuntimeException error = e instanceof RuntimeException ? (RuntimeException) e
+                : new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+            return new BulkResult.Chunk(index, firstRow, rows.size(), 0, error);
+        } finally {
+            if (prepStmt != null) {
+                try {
+                    prepStmt.clearBatch();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            if (autoCommit != null) {
+                try {
+                    conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            invalidateCache(pc, queryName);
+            release(pc, limit);
         }
-        return result;
     }
+
+    /**
+     * Executes a group of writes in one transaction on the group commit thread.
+     * When a write fails, the transaction is rolled back, its future fails,
+     * and the rest of the group is executed again without it.
+     */
+    private void commitGroup(List<GroupCommitter.Request> group) {
+        List<GroupCommitter.Request> pending = new ArrayList<>(group);
+        Set<String> queryNames = new HashSet<>();
+        PooledConnection pc = pool.acquire();
+        Connection conn = pc.connection();
+        Boolean autoCommit = null;
+        try {
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            while (!pending.isEmpty()) {
+                int[] rows = new int[pending.size()];
+                int failed = -1;
+                RuntimeException error = null;
+                for (int i = 0; i < pending.size() && failed < 0; i++) {
+                    GroupCommitter.Request request = pending.get(i);
+                    queryNames.add(request.queryName());
+                    try {
+                        PreparedStatement prepStmt = pc.statement(request.queryName());
+                        bindParams(request.queryName(), prepStmt, request.queryParams());
+                        rows[i] = prepStmt.executeUpdate();
+                    } catch (SQLException e) {
+                        failed = i;
+                        error = new RuntimeException(format("Query %s failed: %s", request.queryName(), e.getMessage()));
+                    } catch (RuntimeException e) {
+                        failed = i;
+                        error = e;
+                    }
+                }
+                if (failed >= 0) {
+                    conn.rollback();
+                    GroupCommitter.Request request = pending.remove(failed);
+                    metrics.metrics(request.queryName()).recordError();
+                    request.future().completeExceptionally(error);
+                    continue;
+                }
+                conn.commit();
+                long nowNanos = System.nanoTime();
+                for (int i = 0; i < pending.size(); i++) {
+                    GroupCommitter.Request request = pending.get(i);
+                    metrics.metrics(request.queryName()).recordWrite(nowNanos - request.submitNanos(), rows[i]);
+                    request.future().complete(rows[i]);
+                }
+                pending.clear();
+            }
+        } catch (SQLException e) {
+            rollback(conn);
+            RuntimeException error = new RuntimeException(format("Commit failed: %s", e.getMessage()));
+            for (GroupCommitter.Request request : pending) {
+                metrics.metrics(request.queryName()).recordError();
+                request.future().completeExceptionally(error);
+            }
+        } finally {
+            if (autoCommit != null) {
+                try {
+                    conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            queryNames.forEach(this::invalidateCache);
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * Writes that bypass the journal wait for the journaled ones, so that they are applied in order.
+     * Callers holding a connection do not wait, because the journal may need that connection.
+     */
+    private void awaitJournal() {
+        if (journal != null && pool.current() == null) {
+            journal.awaitApplied();
+        }
+    }
+
+    /**
+     * The write is recorded with no rows, which are counted when the entry is applied.
+     */
+    private int journalWrite(String queryName, List<Object> queryParams) {
+        QueryMetrics queryMetrics = metrics.metrics(queryName);
+        long startNanos = System.nanoTime();
+        try {
+            journal.append(queryName, queryParams);
+            queryMetrics.recordWrite(System.nanoTime() - startNanos, 0);
+            return 0;
+        } catch (RuntimeException e) {
+            queryMetrics.recordError();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies journal entries in one transaction, with a JDBC batch for each run of entries of the same query.
+     * When the transaction fails, entries are applied one at a time, so that the ones rejected by the database
+     * are dropped, while other errors stop at the failed entry, which is retried by the journal.
+     * Each transaction also saves the last applied entry in the journal table, and entries that were
+     * already applied are skipped, so replayed entries are never applied twice.
+     */
+    private int applyJournal(String journalId, List<WriteJournal.Entry> entries) {
+        Set<String> queryNames = new HashSet<>();
+        PooledConnection pc = pool.acquire();
+        Connection conn = pc.connection();
+        Boolean autoCommit = null;
+        try {
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            int applied = skipApplied(pc, journalId, entries);
+            if (applied == entries.size()
+                    || applyBatches(pc, journalId, entries.subList(applied, entries.size()), queryNames)) {
+                return entries.size();
+            }
+            // the failed commit may have been applied
+            journalCheckpoint = -1;
+            applied = skipApplied(pc, journalId, entries);
+            int skipped = applied;
+            for (WriteJournal.Entry entry : entries.subList(skipped, entries.size())) {
+                QueryMetrics queryMetrics = metrics.metrics(entry.queryName());
+                long startNanos = System.nanoTime();
+                try {
+                    PreparedStatement prepStmt = pc.statement(entry.queryName());
+                    bindParams(entry.queryName(), prepStmt, entry.queryParams());
+                    int rows = prepStmt.executeUpdate();
+                    saveCheckpoint(pc, journalId, entry.seq());
+                    conn.commit();
+                    journalCheckpoint = entry.seq();
+                    queryMetrics.recordBatch(System.nanoTime() - startNanos, 1, rows);
+                } catch (SQLNonTransientException e) {
+                    rollback(conn);
+                    if (e instanceof SQLNonTransientConnectionException) {
+                        journalCheckpoint = -1;
+                        if (applied == skipped) {
+                            throw new RuntimeException(format("Query %s failed: %s", entry.queryName(), e.getMessage()));
+                        }
+                        return applied;
+                    }
+                    // dropped, because it would fail again
+                    queryMetrics.recordError();
+                } catch (SQLException e) {
+                    rollback(conn);
+                    journalCheckpoint = -1;
+                    if (applied == skipped) {
+                        throw new RuntimeException(format("Query %s failed: %s", entry.queryName(), e.getMessage()));
+                    }
+                    return applied;
+                } catch (RuntimeException e) {
+                    rollback(conn);
+                    queryMetrics.recordError();
+                }
+                queryNames.add(entry.queryName());
+                applied++;
+            }
+            return applied;
+        } catch (SQLException e) {
+            rollback(conn);
+            journalCheckpoint = -1;
+            throw new RuntimeException(format("Commit failed: %s", e.getMessage()));
+        } finally {
+            if (autoCommit != null) {
+                try {
+                    conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            queryNames.forEach(this::invalidateCache);
+            pool.release(pc);
+        }
+    }
+
+    /**
+     * @return True if all entries were committed, false if they were rolled back.
+     */
+    private boolean applyBatches(PooledConnection pc, String journalId,
+                                 List<WriteJournal.Entry> entries, Set<String> queryNames) {
+        List<Runnable> records = new ArrayList<>();
+        int from = 0;
+        try {
+            while (from < entries.size()) {
+                String queryName = entries.get(from).queryName();
+                PreparedStatement prepStmt = pc.statement(queryName);
+                long startNanos = System.nanoTime();
+                int to = from;
+                try {
+                    while (to < entries.size() && entries.get(to).queryName().equals(queryName)) {
+                        bindParams(queryName, prepStmt, entries.get(to).queryParams());
+                        prepStmt.addBatch();
+                        to++;
+                    }
+                    int rows = Arrays.stream(prepStmt.executeBatch()).sum();
+                    long nanos = System.nanoTime() - startNanos;
+                    int batchSize = to - from;
+                    records.add(() -> metrics.metrics(queryName).recordBatch(nanos, batchSize, rows));
+                } finally {
+                    prepStmt.clearBatch();
+                }
+                queryNames.add(queryName);
+                from = to;
+            }
+            long lastSeq = entries.get(entries.size() - 1).seq();
+            saveCheckpoint(pc, journalId, lastSeq);
+            pc.connection().commit();
+            journalCheckpoint = lastSeq;
+            records.forEach(Runnable::run);
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            rollback(pc.connection());
+            return false;
+        }
+    }
+
+    /**
+     * Entries committed before a crash can be replayed, because the local checkpoint is saved after the commit.
+     *
+     * @return Number of leading entries that were already applied.
+     */
+    private int skipApplied(PooledConnection pc, String journalId, List<WriteJournal.Entry> entries) throws SQLException {
+        if (journalCheckpoint < 0) {
+            journalCheckpoint = loadCheckpoint(pc, journalId);
+        }
+        int skipped = 0;
+        while (skipped < entries.size() && entries.get(skipped).seq() <= journalCheckpoint) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * The journal table is created when it cannot be read.
+     */
+    private long loadCheckpoint(PooledConnection pc, String journalId) throws SQLException {
+        try {
+            PreparedStatement prepStmt = pc.statement(JOURNAL_SELECT,
+                format("SELECT JO_SEQ FROM %s WHERE JO_ID = ?", config.journalTable()));
+            prepStmt.setString(1, journalId);
+            try (ResultSet resultSet = prepStmt.executeQuery()) {
+                return resultSet != null && resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            rollback(pc.connection());
+            try (Statement stmt = pc.connection().createStatement()) {
+                stmt.execute(format("CREATE TABLE %s (JO_ID VARCHAR(36) PRIMARY KEY, JO_SEQ BIGINT NOT NULL)",
+                    config.journalTable()));
+            }
+            pc.connection().commit();
+            return 0;
+        }
+    }
+
+    private void saveCheckpoint(PooledConnection pc, String journalId, long seq) throws SQLException {
+        PreparedStatement update = pc.statement(JOURNAL_UPDATE,
+            format("UPDATE %s SET JO_SEQ = ? WHERE JO_ID = ?", config.journalTable()));
+        update.setLong(1, seq);
+        update.setString(2, journalId);
+        if (update.executeUpdate() == 0) {
+            PreparedStatement insert = pc.statement(JOURNAL_INSERT,
+                format("INSERT INTO %s (JO_SEQ, JO_ID) VALUES (?, ?)", config.journalTable()));
+            insert.setLong(1, seq);
+            insert.setString(2, journalId);
+            insert.executeUpdate();
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Lazily reads one row at a time from an open result set.
+     * The result set and its connection are released as soon as it is exhausted or the stream is closed,
+     * so memory use does not depend on the result size.
+     */
+    private final class RowSpliterator extends Spliterators.AbstractSpliterator<Row> {
+        private final String queryName;
+        private final PooledConnection pc;
+        private final AdmissionControl.Limit limit;
+        private final ResultSet resultSet;
+        private final List<Class<?>> columnTypes;
+        private final long startNanos;
+        private long index;
+        private boolean failed;
+
+        RowSpliterator(String queryName, PooledConnection pc, AdmissionControl.Limit limit, ResultSet resultSet,
+                       List<Class<?>> columnTypes, long startNanos) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.queryName = queryName;
+            this.pc = pc;
+            this.limit = limit;
+            this.resultSet = resultSet;
+            this.columnTypes = columnTypes;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Row> action) {
+            try {
+                if (resultSet.isClosed() || !resultSet.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(new Row(index++, readColumns(resultSet, columnTypes)));
+                return true;
+            } catch (SQLException e) {
+                failed = true;
+                metrics.metrics(queryName).recordError();
+                close();
+                throw new RuntimeException(format("Query %s failed: %s", queryName, e.getMessage()));
+            }
+        }
+
+        /**
+         * The read is recorded when the stream is released, so its latency includes the consumer time.
+         */
+        void close() {
+            if (resultSets.remove(resultSet)) {
+                if (!failed) {
+                    metrics.metrics(queryName).recordRead(System.nanoTime() - startNanos, index);
+                }
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    // ignore
+                } finally {
+                    release(pc, limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one page per call, binding the last key of the previous page and the page size,
+     * so each query is a short range scan on the key index and only one page is held in memory.
+     * Pages are read as separate queries, so the connection is only leased while reading a page.
+     */
+    private final class PageIterator implements Iterator<Page> {
+        private final String queryName;
+        private final List<Class<?>> columnTypes;
+        private final int pageSize;
+        private Object lastKey;
+        private Page next;
+        private boolean done;
+
+        PageIterator(String queryName, List<Class<?>> columnTypes, Object afterKey, int pageSize) {
+            this.queryName = queryName;
+            this.columnTypes = columnTypes;
+            this.lastKey = afterKey;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                List<Row> rows = read(queryName, columnTypes, List.of(lastKey, pageSize));
+                // a short page is the last one, which saves an empty query at the end
+                done = rows.size() < pageSize;
+                if (!rows.isEmpty()) {
+                    lastKey = rows.get(rows.size() - 1).columns().get(0);
+                    if (lastKey == null) {
+                        throw new RuntimeException(format("Query %s failed: null page key", queryName));
+                    }
+                    next = new Page(rows, lastKey);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Page next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Page page = next;
+            next = null;
+            return page;
+        }
+    }
+
+    private record MapperKey(String queryName, Class<?> recordType) { }
 }
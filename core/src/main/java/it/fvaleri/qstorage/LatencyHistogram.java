@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free and allocation-free log-linear histogram of microsecond latencies.
+ * Each power of two range is split into 8 linear sub-buckets,
+ * so the relative error of a percentile is at most 12.5%.
+ * Values of about 25 days or more are recorded in the last bucket.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong max;
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.max = new AtomicLong();
+    }
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(nanos / 1_000, 0);
+        counts.incrementAndGet(bucketIndex(micros));
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Get percentiles from a copy of the bucket counts.
+     *
+     * @param percentiles Percentiles in the range (0, 100].
+     * @return Upper bounds in microseconds of the buckets containing the percentiles.
+     */
+    long[] percentileMicros(double... percentiles) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] result = new long[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            if (total == 0) {
+                continue;
+            }
+            long rank = Math.max((long) Math.ceil(percentiles[p] / 100 * total), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    result[p] = Math.min(bucketUpperBound(i), maxMicros());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Streams for large binary and character values, so that they are never fully copied on the heap.
+ * Parameters are read by the driver while the statement executes,
+ * and result columns are copied to a channel through a small transfer buffer.
+ */
+final class LobStreams {
+    private static final int BUFFER_SIZE = 8192;
+
+    private LobStreams() {
+    }
+
+    /**
+     * Heap buffers are read in place, while direct buffers are copied in chunks.
+     * The buffer position is not changed.
+     *
+     * @param buffer Byte buffer.
+     * @return Stream of the remaining bytes.
+     */
+    static InputStream of(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * The file channel is only opened when the driver starts reading,
+     * and it is closed as soon as the end of file is reached,
+     * so that a large batch does not hold one open file per row.
+     *
+     * @param path File path.
+     * @return Stream of the file content.
+     */
+    static InputStream of(Path path) {
+        return new PathInputStream(path);
+    }
+
+    static boolean isCharacterType(int sqlType) {
+        switch (sqlType) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copy a column value to a channel.
+     * Character values are encoded as UTF-8.
+     *
+     * @param resultSet Result set positioned on a row.
+     * @param column Column index.
+     * @param characters True for character columns.
+     * @param channel Target channel (not closed).
+     * @return Number of bytes written.
+     */
+    static long transfer(ResultSet resultSet, int column, boolean characters, WritableByteChannel channel)
+            throws SQLException, IOException {
+        CountingChannel target = new CountingChannel(channel);
+        if (characters) {
+            try (Reader reader = resultSet.getCharacterStream(column)) {
+                if (reader != null) {
+                    Writer writer = Channels.newWriter(target, StandardCharsets.UTF_8);
+                    reader.transferTo(writer);
+                    // do not close the writer, which would close the channel
+                    writer.flush();
+                }
+            }
+        } else {
+            try (InputStream input = resultSet.getBinaryStream(column)) {
+                if (input != null) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = input.read(buffer)) >= 0) {
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                        while (chunk.hasRemaining()) {
+                            target.write(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        return target.count;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class PathInputStream extends InputStream {
+        private final Path path;
+        private InputStream input;
+        private boolean closed;
+
+        PathInputStream(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public int read() throws IOException {
+            InputStream input = open();
+            int result = input != null ? input.read() : -1;
+            if (result < 0) {
+                close();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            InputStream input = open();
+            int result = input != null ? input.read(bytes, offset, length) : -1;
+            if (result < 0) {
+                close();
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (input == null && !closed) {
+                input = Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+            }
+            return input;
+        }
+    }
+
+    private static final class CountingChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private long count;
+
+        CountingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int written = channel.write(source);
+            count += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Rewrites a point lookup template with a single {@code <key column> = ?} condition
+ * into {@code <key column> IN (?, ...)} templates, which also select the key column last,
+ * so that result rows can be grouped by key.
+ * IN lists have power of two sizes, so there are only a few statements to prepare and cache,
+ * and unused parameters are filled with a repeated key.
+ * Templates that limit their rows are rejected, because the limit would apply to all keys.
+ */
+final class MultiGet {
+    static final int MAX_BUCKET_SIZE = 128;
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("([\\w.\"`]+)\\s*=\\s*\\?");
+    private static final Pattern FROM_PATTERN = Pattern.compile("\\s+FROM\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIMIT_PATTERN =
+        Pattern.compile("\\b(LIMIT|OFFSET|TOP|FETCH\\s+(FIRST|NEXT))\\b", Pattern.CASE_INSENSITIVE);
+
+    private final String queryName;
+    private final String source;
+    private final String[] templates;
+
+    private MultiGet(String queryName, String source, String[] templates) {
+        this.queryName = queryName;
+        this.source = source;
+        this.templates = templates;
+    }
+
+    /**
+     * @param queryName Query name.
+     * @param template Point lookup template.
+     * @return Multi-get templates.
+     */
+    static MultiGet of(String queryName, String template) {
+        Matcher keyMatcher = KEY_PATTERN.matcher(template);
+        Matcher fromMatcher = FROM_PATTERN.matcher(template);
+        if (template.chars().filter(c -> c == '?').count() != 1 || !keyMatcher.find() || !fromMatcher.find()
+                || fromMatcher.start() > keyMatcher.start() || LIMIT_PATTERN.matcher(template).find()) {
+            throw new IllegalArgumentException(format("Query %s is not a point lookup", queryName));
+        }
+        String keyColumn = keyMatcher.group(1);
+        String select = template.substring(0, fromMatcher.start()) + ", " + keyColumn;
+        String from = template.substring(fromMatcher.start(), keyMatcher.start());
+        String rest = template.substring(keyMatcher.end());
+        String[] templates = new String[Integer.numberOfTrailingZeros(MAX_BUCKET_SIZE) + 1];
+        for (int i = 0; i < templates.length; i++) {
+            StringJoiner params = new StringJoiner(", ", keyColumn + " IN (", ")");
+            for (int j = 0; j < 1 << i; j++) {
+                params.add("?");
+            }
+            templates[i] = select + from + params + rest;
+        }
+        return new MultiGet(queryName, template, templates);
+    }
+
+    /**
+     * @param template Point lookup template.
+     * @return Whether the multi-get templates were derived from the template.
+     */
+    boolean derivedFrom(String template) {
+        return source.equals(template);
+    }
+
+    /**
+     * @param keys Number of keys.
+     * @return Smallest bucket size that fits the keys, up to the maximum.
+     */
+    static int bucketSize(int keys) {
+        int size = Math.min(Math.max(keys, 1), MAX_BUCKET_SIZE);
+        return size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Catalog query names cannot contain the key separator, so this key never clashes with them.
+     *
+     * @param bucketSize Bucket size.
+     * @return Statement cache key.
+     */
+    String statementKey(int bucketSize) {
+        return queryName + QueryCatalog.KEY_SEPARATOR + "in" + bucketSize;
+    }
+
+    String template(int bucketSize) {
+        return templates[Integer.numberOfTrailingZeros(bucketSize)];
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled parameter binder of a query.
+ * Typed setters are picked once from the parameter types of the first call,
+ * so that later calls with the same types only pay for one class comparison per parameter.
+ * Parameters of a different type, or types without a typed setter, are bound by
+ * {@link JdbcQueryableStorage#setQueryParam(PreparedStatement, int, Object)}.
+ * Binders are immutable, so they can be shared by concurrent threads.
+ */
+final class ParamBinder {
+    private static final Map<Class<?>, Setter> SETTERS = Map.of(
+        String.class, (prepStmt, index, param) -> prepStmt.setString(index, (String) param),
+        Integer.class, (prepStmt, index, param) -> prepStmt.setInt(index, (Integer) param),
+        Long.class, (prepStmt, index, param) -> prepStmt.setLong(index, (Long) param),
+        Date.class, (prepStmt, index, param) -> prepStmt.setDate(index, (Date) param),
+        LocalDate.class, (prepStmt, index, param) -> prepStmt.setDate(index, Date.valueOf((LocalDate) param)),
+        BigDecimal.class, (prepStmt, index, param) -> prepStmt.setBigDecimal(index, (BigDecimal) param),
+        Timestamp.class, (prepStmt, index, param) -> prepStmt.setTimestamp(index, (Timestamp) param),
+        byte[].class, (prepStmt, index, param) ->
+            prepStmt.setBinaryStream(index, new ByteArrayInputStream((byte[]) param), ((byte[]) param).length)
+    );
+
+    private final Class<?>[] types;
+    private final Setter[] setters;
+
+    private ParamBinder(Class<?>[] types, Setter[] setters) {
+        this.types = types;
+        this.setters = setters;
+    }
+
+    /**
+     * Create a binder from the parameters of the first call.
+     * Null parameters and unsupported types are always bound by the generic path.
+     *
+     * @param queryParams Query parameters.
+     * @return Parameter binder.
+     */
+    static ParamBinder of(List<Object> queryParams) {
+        Class<?>[] types = new Class<?>[queryParams.size()];
+        Setter[] setters = new Setter[queryParams.size()];
+        for (int i = 0; i < queryParams.size(); i++) {
+            Object param = queryParams.get(i);
+            Setter setter = param != null ? SETTERS.get(param.getClass()) : null;
+            if (setter != null) {
+                types[i] = param.getClass();
+                setters[i] = setter;
+            }
+        }
+        return new ParamBinder(types, setters);
+    }
+
+    void bind(PreparedStatement prepStmt, List<Object> queryParams) {
+        int size = queryParams.size();
+        for (int i = 0; i < size; i++) {
+            Object param = queryParams.get(i);
+            if (param != null && i < types.length && param.getClass() == types[i]) {
+                try {
+                    setters[i].set(prepStmt, i + 1, param);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                JdbcQueryableStorage.setQueryParam(prepStmt, i + 1, param);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Setter {
+        void set(PreparedStatement prepStmt, int index, Object param) throws SQLException;
+    }
+}
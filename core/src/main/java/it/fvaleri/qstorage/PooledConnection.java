@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * Connection with its own prepared statement cache in access order.
+ * Only the thread holding the lease can use it, so the cache needs no locking.
+ */
+final class PooledConnection {
+    private final Connection conn;
+    private QueryCatalog catalog;
+    private final Map<String, PreparedStatement> prepStmts;
+
+    // guarded by this, managed by the pool
+    Thread owner;
+    int holds;
+
+    // names of the queries written in the current transaction, or null when not in a transaction (owner only)
+    Set<String> transaction;
+    // rows of the batched writes in the current transaction by query name, executed before it commits (owner only)
+    Map<String, List<List<Object>>> batches;
+
+    PooledConnection(Connection conn, QueryCatalog catalog) {
+        this.conn = conn;
+        this.catalog = catalog;
+        this.prepStmts = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    Connection connection() {
+        return conn;
+    }
+
+    /**
+     * Statements derived from catalog templates must use this catalog, which is the one of their cache.
+     *
+     * @return Catalog of the prepared statements.
+     */
+    QueryCatalog catalog() {
+        return catalog;
+    }
+
+    void prepareAll() throws SQLException {
+        for (String queryName : catalog.names()) {
+            statement(queryName);
+        }
+    }
+
+    PreparedStatement statement(String queryName) throws SQLException {
+        PreparedStatement prepStmt = prepStmts.get(queryName);
+        if (prepStmt == null) {
+            if (!catalog.contains(queryName)) {
+                throw new SQLException(format("Query %s not found", queryName));
+            }
+            prepStmt = conn.prepareStatement(catalog.template(queryName));
+            setTimeout(queryName, prepStmt);
+            prepStmts.put(queryName, prepStmt);
+        }
+        return prepStmt;
+    }
+
+    /**
+     * Get a statement derived from a catalog query, which shares the same cache.
+     *
+     * @param key Statement key, which must not clash with query names.
+     * @param template Statement template.
+     * @return Prepared statement.
+     * @throws SQLException On prepare error.
+     */
+    PreparedStatement statement(String key, String template) throws SQLException {
+        return statement(key, template, false);
+    }
+
+    /**
+     * @param key Statement key, which must not clash with query names.
+     * @param template Statement template.
+     * @param generatedKeys Whether generated keys are returned.
+     * @return Prepared statement.
+     * @throws SQLException On prepare error.
+     */
+    PreparedStatement statement(String key, String template, boolean generatedKeys) throws SQLException {
+        PreparedStatement prepStmt = prepStmts.get(key);
+        if (prepStmt == null) {
+            if (template == null) {
+                throw new SQLException(format("Query %s not found", baseName(key)));
+            }
+            prepStmt = generatedKeys
+                ? conn.prepareStatement(template, Statement.RETURN_GENERATED_KEYS)
+                : conn.prepareStatement(template);
+            setTimeout(baseName(key), prepStmt);
+            prepStmts.put(key, prepStmt);
+        }
+        return prepStmt;
+    }
+
+    /**
+     * Switch to a new catalog, closing the statements of queries that were changed or removed,
+     * including the ones derived from them. Must be called while no statement is in use.
+     *
+     * @param next New catalog.
+     * @param prepare Whether to prepare the statements of queries that were added or changed.
+     * @throws SQLException On prepare error.
+     */
+    void reload(QueryCatalog next, boolean prepare) throws SQLException {
+        if (next == catalog) {
+            return;
+        }
+        Iterator<Map.Entry<String, PreparedStatement>> iterator = prepStmts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PreparedStatement> entry = iterator.next();
+            if (!catalog.sameQuery(next, baseName(entry.getKey()))) {
+                iterator.remove();
+                try {
+                    entry.getValue().close();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+        }
+        QueryCatalog previous = catalog;
+        catalog = next;
+        if (prepare) {
+            for (String queryName : next.names()) {
+                if (!previous.sameQuery(next, queryName)) {
+                    statement(queryName);
+                }
+            }
+        }
+    }
+
+    private static String baseName(String key) {
+        int index = key.indexOf(QueryCatalog.KEY_SEPARATOR);
+        return index < 0 ? key : key.substring(0, index);
+    }
+
+    /**
+     * Derived statements have the timeout of the query they are derived from.
+     */
+    private void setTimeout(String queryName, PreparedStatement prepStmt) throws SQLException {
+        int timeout = catalog.intAttribute(queryName, QueryCatalog.ATTR_TIMEOUT, 0);
+        if (timeout > 0) {
+            prepStmt.setQueryTimeout(timeout);
+        }
+    }
+
+    /**
+     * Close the least recently used statements exceeding the cache size.
+     *
+     * @param maxStatements Maximum number of cached statements (zero means unbounded).
+     */
+    void trim(int maxStatements) {
+        if (maxStatements <= 0) {
+            return;
+        }
+        Iterator<PreparedStatement> iterator = prepStmts.values().iterator();
+        while (prepStmts.size() > maxStatements && iterator.hasNext()) {
+            PreparedStatement prepStmt = iterator.next();
+            iterator.remove();
+            try {
+                prepStmt.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+    }
+
+    boolean isClosed() {
+        try {
+            return conn.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    void close(boolean closeConnection) {
+        for (PreparedStatement ps : prepStmts.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+        prepStmts.clear();
+        if (closeConnection) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of read query results with optional TTL.
+ * Each table has a version that is incremented when a write query touches it.
+ * Entries record the version of their tables before the query was executed,
+ * so that a write invalidates all dependent entries in constant time.
+ * Stale entries are dropped on lookup or evicted by the LRU policy.
+ */
+final class QueryCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<Key, Entry> entries;
+    private final Map<String, AtomicLong> tableVersions;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    QueryCache(int maxEntries, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > QueryCache.this.maxEntries;
+            }
+        };
+        this.tableVersions = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * Get the current version of a set of tables.
+     * It must be taken before executing the query whose result will be cached.
+     *
+     * @param tables Table names.
+     * @return Version.
+     */
+    long version(Set<String> tables) {
+        long version = 0;
+        for (String table : tables) {
+            AtomicLong tableVersion = tableVersions.get(table);
+            if (tableVersion != null) {
+                version += tableVersion.get();
+            }
+        }
+        return version;
+    }
+
+    Object get(Key key, Set<String> tables) {
+        long version = version(tables);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.version == version && (ttlNanos == 0 || System.nanoTime() - entry.createdNanos < ttlNanos)) {
+                    hits.increment();
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(Key key, long version, Object value) {
+        synchronized (entries) {
+            entries.put(key, new Entry(value, version, System.nanoTime()));
+        }
+    }
+
+    void invalidate(Set<String> tables) {
+        for (String table : tables) {
+            tableVersions.computeIfAbsent(table, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @param queryName Query name.
+     * @param resultType Result column types or record type.
+     * @param queryParams Query parameters.
+     */
+    record Key(String queryName, Object resultType, List<Object> queryParams) { }
+
+    private record Entry(Object value, long version, long createdNanos) { }
+}
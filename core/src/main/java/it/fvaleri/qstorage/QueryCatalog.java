@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Immutable catalog of query templates loaded from properties.
+ * Query attributes are defined with keys in the form {@code <query name>@<attribute>},
+ * for example {@code users.select.by.pk@cache = true}.
+ * Keys ending with {@code @} and an unknown attribute are query names, so query names can contain {@code @}.
+ *
+ * <ul>
+ *     <li>{@code tables}: comma separated list of tables used by the query (inferred from the template if missing).</li>
+ *     <li>{@code cache}: cache read results (default false).</li>
+ *     <li>{@code timeout}: statement timeout in seconds (default 0, which means no timeout).</li>
+ *     <li>{@code concurrency}: maximum number of executions in progress (default unbounded).</li>
+ *     <li>{@code queue}: maximum number of executions waiting when concurrency is exceeded (default concurrency).</li>
+ * </ul>
+ */
+final class QueryCatalog {
+    static final String ATTR_SEPARATOR = "@";
+    // separates a query name from the suffix of its derived statement keys
+    static final String KEY_SEPARATOR = "\0";
+    static final String ATTR_TABLES = "tables";
+    static final String ATTR_CACHE = "cache";
+    static final String ATTR_TIMEOUT = "timeout";
+    static final String ATTR_CONCURRENCY = "concurrency";
+    static final String ATTR_QUEUE = "queue";
+
+    private static final Set<String> ATTRIBUTES = Set.of(ATTR_TABLES, ATTR_CACHE, ATTR_TIMEOUT, ATTR_CONCURRENCY, ATTR_QUEUE);
+    private static final Set<String> INT_ATTRIBUTES = Set.of(ATTR_TIMEOUT, ATTR_CONCURRENCY, ATTR_QUEUE);
+    private static final Pattern TABLE_PATTERN = Pattern.compile(
+        "\\b(?:FROM|JOIN|INTO|UPDATE)\\s+([\\w.\"`]+)", Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, String> templates;
+    private final Map<String, Map<String, String>> attributes;
+    private final Map<String, Set<String>> tables;
+
+    private QueryCatalog(Map<String, String> templates, Map<String, Map<String, String>> attributes) {
+        this.templates = Map.copyOf(templates);
+        this.attributes = Map.copyOf(attributes);
+        Map<String, Set<String>> tables = new HashMap<>();
+        for (Map.Entry<String, String> entry : templates.entrySet()) {
+            String declared = attribute(entry.getKey(), ATTR_TABLES);
+            tables.put(entry.getKey(), declared != null ? parseTables(declared) : inferTables(entry.getValue()));
+        }
+        this.tables = Map.copyOf(tables);
+    }
+
+    /**
+     * Load the catalog from properties.
+     *
+     * @param queries Query templates and attributes.
+     * @return Query catalog.
+     */
+    static QueryCatalog load(Properties queries) {
+        if (queries == null || queries.isEmpty()) {
+            throw new IllegalArgumentException("Invalid queries");
+        }
+        Map<String, String> templates = new HashMap<>();
+        Map<String, Map<String, String>> attributes = new HashMap<>();
+        for (String key : queries.stringPropertyNames()) {
+            int index = key.lastIndexOf(ATTR_SEPARATOR);
+            String attribute = index < 0 ? null : key.substring(index + 1);
+            if (attribute == null || !ATTRIBUTES.contains(attribute)) {
+                if (key.contains(KEY_SEPARATOR)) {
+                    throw new IllegalArgumentException(format("Invalid query name %s", key));
+                }
+                templates.put(key, queries.getProperty(key));
+            } else {
+                if (INT_ATTRIBUTES.contains(attribute)
+                        && !isCount(queries.getProperty(key), ATTR_CONCURRENCY.equals(attribute) ? 1 : 0)) {
+                    throw new IllegalArgumentException(format("Invalid query attribute %s", key));
+                }
+                attributes.computeIfAbsent(key.substring(0, index), k -> new HashMap<>())
+                    .put(attribute, queries.getProperty(key).trim());
+            }
+        }
+        for (String queryName : attributes.keySet()) {
+            if (!templates.containsKey(queryName)) {
+                throw new IllegalArgumentException(format("Query %s not found", queryName));
+            }
+        }
+        if (templates.isEmpty()) {
+            throw new IllegalArgumentException("Invalid queries");
+        }
+        return new QueryCatalog(templates, attributes);
+    }
+
+    Set<String> names() {
+        return templates.keySet();
+    }
+
+    boolean contains(String queryName) {
+        return templates.containsKey(queryName);
+    }
+
+    String template(String queryName) {
+        return templates.get(queryName);
+    }
+
+    String attribute(String queryName, String attribute) {
+        Map<String, String> queryAttributes = attributes.get(queryName);
+        return queryAttributes != null ? queryAttributes.get(attribute) : null;
+    }
+
+    /**
+     * @param other Other catalog.
+     * @param queryName Query name.
+     * @return Whether the query has the same template and attributes in the other catalog.
+     */
+    boolean sameQuery(QueryCatalog other, String queryName) {
+        return other.contains(queryName) && contains(queryName)
+            && template(queryName).equals(other.template(queryName))
+            && Objects.equals(attributes.get(queryName), other.attributes.get(queryName));
+    }
+
+    boolean booleanAttribute(String queryName, String attribute) {
+        return Boolean.parseBoolean(attribute(queryName, attribute));
+    }
+
+    int intAttribute(String queryName, String attribute, int defaultValue) {
+        String value = attribute(queryName, attribute);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * @param queryName Query name.
+     * @return Normalized names of the tables used by the query.
+     */
+    Set<String> tables(String queryName) {
+        return tables.getOrDefault(queryName, Set.of());
+    }
+
+    static Set<String> inferTables(String template) {
+        Set<String> result = new LinkedHashSet<>();
+        Matcher matcher = TABLE_PATTERN.matcher(template);
+        while (matcher.find()) {
+            result.add(normalizeTable(matcher.group(1)));
+        }
+        return Set.copyOf(result);
+    }
+
+    private static Set<String> parseTables(String tables) {
+        Set<String> result = new LinkedHashSet<>();
+        Arrays.stream(tables.split(","))
+            .map(String::trim)
+            .filter(table -> !table.isEmpty())
+            .forEach(table -> result.add(normalizeTable(table)));
+        return Set.copyOf(result);
+    }
+
+    private static boolean isCount(String value, int min) {
+        try {
+            return Integer.parseInt(value.trim()) >= min;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String normalizeTable(String table) {
+        return table.replace("\"", "").replace("`", "").toUpperCase(Locale.ROOT);
+    }
+}
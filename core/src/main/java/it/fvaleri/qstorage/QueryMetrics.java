@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.StorageMetrics.Latency;
+import it.fvaleri.qstorage.StorageMetrics.QueryStats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one named query.
+ * Recording is lock-free and does not allocate.
+ */
+final class QueryMetrics implements QueryMetricsMBean {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedRows = new LongAdder();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    void recordRead(long elapsedNanos, long rows) {
+        calls.increment();
+        rowsRead.add(rows);
+        latency.recordNanos(elapsedNanos);
+    }
+
+    void recordWrite(long elapsedNanos, long rows) {
+        calls.increment();
+        rowsWritten.add(rows);
+        latency.recordNanos(elapsedNanos);
+    }
+
+    void recordBatch(long elapsedNanos, int batchSize, long rows) {
+        batches.increment();
+        batchedRows.add(batchSize);
+        rowsWritten.add(rows);
+        maxBatchSize.accumulateAndGet(batchSize, Math::max);
+        batchLatency.recordNanos(elapsedNanos);
+    }
+
+    void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void recordRejection() {
+        rejections.increment();
+    }
+
+    QueryStats stats() {
+        return new QueryStats(calls.sum(), errors.sum(), rejections.sum(), cacheHits.sum(), rowsRead.sum(), rowsWritten.sum(),
+            batches.sum(), batchedRows.sum(), maxBatchSize.get(), latency(latency), latency(batchLatency));
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getBatchedRows() {
+        return batchedRows.sum();
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return latency.percentileMicros(50)[0];
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return latency.percentileMicros(99)[0];
+    }
+
+    @Override
+    public long getLatencyMax() {
+        return latency.maxMicros();
+    }
+
+    @Override
+    public long getBatchLatencyP50() {
+        return batchLatency.percentileMicros(50)[0];
+    }
+
+    @Override
+    public long getBatchLatencyP99() {
+        return batchLatency.percentileMicros(99)[0];
+    }
+
+    @Override
+    public long getBatchLatencyMax() {
+        return batchLatency.maxMicros();
+    }
+
+    private static Latency latency(LatencyHistogram histogram) {
+        long[] percentiles = histogram.percentileMicros(50, 95, 99);
+        return new Latency(histogram.count(), percentiles[0], percentiles[1], percentiles[2], histogram.maxMicros());
+    }
+}
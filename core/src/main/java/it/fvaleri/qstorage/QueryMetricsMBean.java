@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+/**
+ * JMX view of the metrics of one named query.
+ * Latencies are in microseconds.
+ */
+public interface QueryMetricsMBean {
+    long getCalls();
+
+    long getErrors();
+
+    long getRejections();
+
+    long getCacheHits();
+
+    long getRowsRead();
+
+    long getRowsWritten();
+
+    long getBatches();
+
+    long getBatchedRows();
+
+    long getMaxBatchSize();
+
+    long getLatencyP50();
+
+    long getLatencyP99();
+
+    long getLatencyMax();
+
+    long getBatchLatencyP50();
+
+    long getBatchLatencyP99();
+
+    long getBatchLatencyMax();
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Reusable list of query parameters that can be passed wherever a parameter list is accepted.
+ * Primitive values are stored and bound without boxing,
+ * so a hot write path can reuse one instance per thread instead of allocating a list per call.
+ * Parameters are added in query order, and the holder must be cleared before reuse.
+ * Element access boxes primitive values, and it is only used when the parameters are copied,
+ * for example when they are buffered in a write batch.
+ * This class is not thread-safe.
+ *
+ * <pre>{@code
+ * QueryParams params = new QueryParams();
+ * storage.write("pagamento.insert", params.reset().param(code).param(amount).param(card));
+ * }</pre>
+ */
+public final class QueryParams extends AbstractList<Object> implements RandomAccess {
+    private static final byte LONG = 0;
+    private static final byte INT = 1;
+    private static final byte OBJECT = 2;
+
+    private byte[] kinds;
+    private long[] primitives;
+    private Object[] objects;
+    private int size;
+
+    public QueryParams() {
+        this(8);
+    }
+
+    /**
+     * @param capacity Initial capacity.
+     */
+    public QueryParams(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+        this.kinds = new byte[capacity];
+        this.primitives = new long[capacity];
+        this.objects = new Object[capacity];
+    }
+
+    /**
+     * Remove all parameters.
+     *
+     * @return This holder.
+     */
+    public QueryParams reset() {
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+        modCount++;
+        return this;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    /**
+     * @param value Long parameter.
+     * @return This holder.
+     */
+    public QueryParams param(long value) {
+        int index = next(LONG);
+        primitives[index] = value;
+        return this;
+    }
+
+    /**
+     * @param value Int parameter.
+     * @return This holder.
+     */
+    public QueryParams param(int value) {
+        int index = next(INT);
+        primitives[index] = value;
+        return this;
+    }
+
+    /**
+     * @param value Parameter of any supported type, or null.
+     * @return This holder.
+     */
+    public QueryParams param(Object value) {
+        int index = next(OBJECT);
+        objects[index] = value;
+        return this;
+    }
+
+    @Override
+    public boolean add(Object value) {
+        param(value);
+        return true;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return switch (kinds[index]) {
+            case LONG -> primitives[index];
+            case INT -> (int) primitives[index];
+            default -> objects[index];
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    void bind(PreparedStatement prepStmt) {
+        try {
+            for (int i = 0; i < size; i++) {
+                switch (kinds[i]) {
+                    case LONG -> prepStmt.setLong(i + 1, primitives[i]);
+                    case INT -> prepStmt.setInt(i + 1, (int) primitives[i]);
+                    default -> JdbcQueryableStorage.setQueryParam(prepStmt, i + 1, objects[i]);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int next(byte kind) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            primitives = Arrays.copyOf(primitives, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+        kinds[size] = kind;
+        modCount++;
+        return size++;
+    }
+}
@@ -4,24 +4,94 @@
  */
 package it.fvaleri.qstorage;
 
+import javax.sql.DataSource;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Storage that supports read and write queries.
  */
 public interface QueryableStorage extends AutoCloseable {
+    /**
+     * Batch size of writes whose batch size is tuned per query from the measured batch latency.
+     */
+    int ADAPTIVE_BATCH_SIZE = -1;
+
     /**
      * Create default queryable storage instance.
+     * The connection is shared, so operations are serialized across threads.
      *
      * @param conn SQL connection.
      * @param queries Query templates.
      */
     static QueryableStorage create(Connection conn, Properties queries) {
-        return new JdbcQueryableStorage(conn, queries);
+        return create(conn, queries, new StorageConfig());
     }
-    
+
+    /**
+     * Create default queryable storage instance.
+     * The connection is shared, so operations are serialized across threads
+     * and the configured pool size is ignored.
+     *
+     * @param conn SQL connection.
+     * @param queries Query templates.
+     * @param config Storage configuration.
+     */
+    static QueryableStorage create(Connection conn, Properties queries, StorageConfig config) {
+        return new JdbcQueryableStorage(conn, queries, config);
+    }
+
+    /**
+     * Create thread-safe queryable storage instance with default configuration.
+     * Connections are pooled and each one has its own prepared statement cache.
+     *
+     * @param dataSource SQL data source.
+     * @param queries Query templates.
+     */
+    static QueryableStorage create(DataSource dataSource, Properties queries) {
+        return create(dataSource, queries, new StorageConfig());
+    }
+
+    /**
+     * Create thread-safe queryable storage instance.
+     * Connections are pooled and each one has its own prepared statement cache.
+     *
+     * @param dataSource SQL data source.
+     * @param queries Query templates.
+     * @param config Storage configuration.
+     */
+    static QueryableStorage create(DataSource dataSource, Properties queries, StorageConfig config) {
+        return new JdbcQueryableStorage(dataSource, queries, config);
+    }
+
+    /**
+     * Create thread-safe queryable storage instance that sends writes to a primary database
+     * and balances reads across its replicas, according to the configured read routing.
+     * The query catalog is prepared on every database, each one with its own connection pool.
+     *
+     * @param primary Primary data source.
+     * @param replicas Replica data sources.
+     * @param queries Query templates.
+     * @param config Storage configuration.
+     */
+    static QueryableStorage create(DataSource primary, List<DataSource> replicas,
+                                   Properties queries, StorageConfig config) {
+        return new ReplicatedQueryableStorage(primary, replicas, queries, config);
+    }
+
     /**
      * Executes a read query without parameters.
      *
@@ -42,6 +112,145 @@ public interface QueryableStorage extends AutoCloseable {
      */
     List<Row> read(String queryName, List<Class<?>> columnTypes, List<Object> queryParams);
 
+    /**
+     * Executes a read query with parameters mapping each row with a row mapper.
+     * The parameter order must match the query order.
+     *
+     * @param queryName Query name.
+     * @param rowMapper Maps the current result set row.
+     * @param queryParams Query parameters.
+     * @return List of mapped rows.
+     * @param <T> Row type.
+     */
+    <T> List<T> read(String queryName, RowMapper<T> rowMapper, List<Object> queryParams);
+
+    /**
+     * Executes a read query with parameters mapping each row to a record.
+     * The parameter order must match the query order.
+     * Columns are matched to record components by name, ignoring case and underscores,
+     * or by position when names do not match.
+     * The mapper is built once per query and record type.
+     *
+     * @param queryName Query name.
+     * @param recordType Record type.
+     * @param queryParams Query parameters.
+     * @return List of records.
+     * @param <T> Record type.
+     */
+    <T extends Record> List<T> read(String queryName, Class<T> recordType, List<Object> queryParams);
+
+    /**
+     * Executes a point lookup query for many keys, returning the rows grouped by key.
+     * The query must have a single parameter in the form {@code <key column> = ?} and no row limit.
+     * The parameter is rewritten to an IN list with power of two sizes up to 128 keys,
+     * so that only a few statements are prepared and larger key lists take few round trips.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types.
+     * @param keys Lookup keys, which must have the same type.
+     * @return Map of rows by key, in key order and with an empty list for missing keys.
+     */
+    Map<Object, List<Row>> readMany(String queryName, List<Class<?>> columnTypes, List<?> keys);
+
+    /**
+     * Executes a read query with parameters returning a columnar result.
+     * The parameter order must match the query order.
+     * Values are stored in primitive column vectors without boxing,
+     * which is suited for aggregations over large numeric results.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types (numeric, decimal, date or string).
+     * @param queryParams Query parameters.
+     * @return Columnar result.
+     */
+    ColumnarResult readColumnar(String queryName, List<Class<?>> columnTypes, List<Object> queryParams);
+
+    /**
+     * Executes a read query with parameters returning a lazy stream of rows.
+     * The parameter order must match the query order.
+     * The stream must be closed to release the underlying result set.
+     * Columns of type {@link InputStream} or {@link Reader} are returned as LOB streams,
+     * which are only valid until the next row is read.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types.
+     * @param queryParams Query parameters.
+     * @return Stream of rows.
+     */
+    Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams);
+
+    /**
+     * Executes a read query with parameters returning a lazy stream of rows.
+     * The parameter order must match the query order.
+     * The stream must be closed to release the underlying result set.
+     * Rows are fetched from the database in chunks of fetchSize rows,
+     * so memory use stays flat regardless of the result size.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types.
+     * @param queryParams Query parameters.
+     * @param fetchSize Fetch size hint (zero means driver default).
+     * @return Stream of rows.
+     */
+    Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams, int fetchSize);
+
+    /**
+     * Executes a read query with parameters writing the first column of each row into a channel.
+     * The parameter order must match the query order.
+     * Binary values are copied as is, while character values are encoded as UTF-8,
+     * and they are streamed from the database without being fully loaded on the heap.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @param channel Target channel, which is not closed.
+     * @return Number of bytes written.
+     */
+    long readLob(String queryName, List<Object> queryParams, WritableByteChannel channel);
+
+    /**
+     * Executes a keyset paginated read query, returning a lazy iterator of pages.
+     * The query must select the key first, and take the exclusive start key and the page size
+     * as parameters, for example {@code SELECT ID, NAME FROM USERS WHERE ID > ? ORDER BY ID LIMIT ?}.
+     * Each page is read with its own query, so its cost does not depend on the scan position,
+     * and a failed scan can be resumed from the last key of the last processed page.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types, starting with the key type.
+     * @param afterKey Exclusive start key (for example, zero or an empty string for a full scan).
+     * @param pageSize Maximum number of rows per page.
+     * @return Iterator of non empty pages.
+     */
+    Iterator<Page> readPages(String queryName, List<Class<?>> columnTypes, Object afterKey, int pageSize);
+
+    /**
+     * Executes a range read query in parallel, splitting the key range into equal partitions.
+     * The query must take the inclusive lower bound and the exclusive upper bound of a numeric key
+     * as parameters, for example {@code SELECT ID, NAME FROM USERS WHERE ID >= ? AND ID < ? ORDER BY ID}.
+     * Each partition is read on its own pooled connection, up to the number of available connections,
+     * and results are merged in partition order, so they are ordered when each partition is.
+     * Partitions are read sequentially when the calling thread is in a transaction.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types.
+     * @param fromKey Inclusive lower bound of the key range.
+     * @param toKey Exclusive upper bound of the key range.
+     * @param partitions Maximum number of partitions.
+     * @return List of rows.
+     */
+    List<Row> readParallel(String queryName, List<Class<?>> columnTypes, long fromKey, long toKey, int partitions);
+
+    /**
+     * Executes a read query with parameters asynchronously.
+     * The parameter order must match the query order.
+     * Concurrent executions are bounded by the number of available connections.
+     *
+     * @param queryName Query name.
+     * @param columnTypes Result column types.
+     * @param queryParams Query parameters.
+     * @return Future list of rows.
+     */
+    CompletableFuture<List<Row>> readAsync(String queryName, List<Class<?>> columnTypes, List<Object> queryParams);
+
     /**
      * Executes a write query without parameters.
      *
@@ -53,6 +262,12 @@ public interface QueryableStorage extends AutoCloseable {
     /**
      * Executes a write query with parameters.
      * The parameter order must match the query order.
+     * Large binary and character values can be passed as {@link InputStream}, {@link ByteBuffer},
+     * {@link Reader} or {@link Path} parameters, so that they are streamed to the database.
+     * Streams are not closed, except the ones opened on a path.
+     * A reusable {@link QueryParams} holder binds primitive parameters without boxing.
+     * When the write-behind journal is enabled, writes outside transactions are journaled
+     * and return zero, because rows are only written when the entry is applied.
      *
      * @param queryName Query name.
      * @param queryParams Query parameters.
@@ -60,11 +275,85 @@ public interface QueryableStorage extends AutoCloseable {
      */
     int write(String queryName, List<Object> queryParams);
 
+    /**
+     * Executes a write query with parameters returning the key generated by the database.
+     * The parameter order must match the query order.
+     * The query is prepared once more to return generated keys, and it is never journaled,
+     * so it waits for the journaled writes to be applied first.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @param keyType Generated key type.
+     * @return Generated key, or null if no row was written.
+     * @param <K> Key type.
+     */
+    <K> K writeReturningKey(String queryName, List<Object> queryParams, Class<K> keyType);
+
+    /**
+     * Executes a write query for each row in a single JDBC batch returning the keys generated by the database.
+     * The parameter order must match the query order.
+     * Keys are mapped back to the input rows by position, skipping rows that were not written,
+     * so a whole batch of inserts takes one round trip.
+     * Like {@link #writeReturningKey(String, List, Class)}, it waits for the journaled writes to be applied first.
+     *
+     * @param queryName Query name.
+     * @param rows Query parameters of each row.
+     * @param keyType Generated key type.
+     * @return Generated key of each row, or null for rows that were not written.
+     * @param <K> Key type.
+     */
+    <K> List<K> writeBatchReturningKeys(String queryName, List<List<Object>> rows, Class<K> keyType);
+
+    /**
+     * Executes a write query for each row of a stream with default bulk options.
+     *
+     * @param queryName Query name.
+     * @param rows Query parameters of each row, which are consumed and closed.
+     * @return Bulk result with one entry per chunk.
+     */
+    BulkResult writeAll(String queryName, Stream<List<Object>> rows);
+
+    /**
+     * Executes a write query for each row of a stream.
+     * The parameter order must match the query order.
+     * Rows are split into chunks of commitSize rows, and each chunk is written in JDBC batches
+     * and committed in its own transaction, so a failed chunk is rolled back and reported
+     * without affecting the other ones.
+     * Chunks can be written in parallel on different pooled connections.
+     * When the write-behind journal is enabled, it waits for the journaled writes to be applied first.
+     *
+     * @param queryName Query name.
+     * @param rows Query parameters of each row, which are consumed and closed.
+     * @param options Bulk options.
+     * @return Bulk result with one entry per chunk.
+     */
+    BulkResult writeAll(String queryName, Stream<List<Object>> rows, BulkOptions options);
+
+    /**
+     * Executes a write query with parameters asynchronously.
+     * The parameter order must match the query order.
+     * Concurrent executions are bounded by the number of available connections.
+     * When group commit is enabled, concurrent writes share one commit,
+     * and the future completes when that commit succeeds.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @return Future number of written rows.
+     */
+    CompletableFuture<Integer> writeAsync(String queryName, List<Object> queryParams);
+
     /**
      * Executes a write query with parameters with batch support.
      * The parameter order must match the query order.
      * If batchSize size is greater than one, the write will be executed
-     * only when batchSize number of writes is reached for that write query.
+     * only when batchSize number of writes is reached for that write query,
+     * the configured batch linger time expires, or the batch is flushed.
+     * With {@link #ADAPTIVE_BATCH_SIZE}, the batch size of the query is tuned toward
+     * the configured adaptive batch latency.
+     * Pending batches are flushed when the storage is closed.
+     * Within a transaction, pending batches are executed before it commits and discarded if it rolls back.
+     * When the write-behind journal is enabled, writes outside transactions are journaled instead,
+     * and the journal applies them in batches.
      *
      * @param queryName Query name.
      * @param queryParams Query parameters.
@@ -73,6 +362,55 @@ public interface QueryableStorage extends AutoCloseable {
      */
     int write(String queryName, List<Object> queryParams, int batchSize);
 
+    /**
+     * Executes a unit of work in a transaction, which is committed when it returns
+     * and rolled back when it throws.
+     * All queries executed by the calling thread within the work use the same connection,
+     * including batched writes, while asynchronous queries are not included.
+     * Nested calls join the outer transaction, and reads within it are never cached.
+     * When the write-behind journal is enabled, it waits for the journaled writes to be applied first.
+     *
+     * @param work Unit of work, which receives this storage.
+     * @return Result of the unit of work.
+     * @param <T> Result type.
+     */
+    <T> T inTransaction(Function<QueryableStorage, T> work);
+
+    /**
+     * Executes all pending write batches,
+     * and waits for journaled writes to be applied when the write-behind journal is enabled.
+     *
+     * @return Number of written rows.
+     */
+    int flush();
+
+    /**
+     * Executes the pending write batch of a query,
+     * and waits for journaled writes to be applied when the write-behind journal is enabled.
+     *
+     * @param queryName Query name.
+     * @return Number of written rows.
+     */
+    int flush(String queryName);
+
+    /**
+     * Replace the query catalog without blocking in-flight queries, which complete with the previous one.
+     * Only the statements of added or changed queries are prepared, while the ones of removed
+     * or changed queries are closed. Pending batches of removed or changed queries are flushed first.
+     * When statements are not lazily prepared, an invalid template fails the reload
+     * and the previous catalog is kept.
+     *
+     * @param queries Query templates and attributes (cleared after loading).
+     */
+    void reload(Properties queries);
+
+    /**
+     * Get per-query metrics such as latency percentiles, row counts and batch stats.
+     *
+     * @return Storage metrics.
+     */
+    StorageMetrics metrics();
+
     /**
      * A row in a query result (list of rows).
      *
@@ -80,4 +418,28 @@ public interface QueryableStorage extends AutoCloseable {
      * @param columns List of row values.
      */
     record Row(long index, List<Object> columns) { }
+
+    /**
+     * A page of a keyset paginated read.
+     *
+     * @param rows List of rows.
+     * @param lastKey Key of the last row, which is the start key of the next page.
+     */
+    record Page(List<Row> rows, Object lastKey) { }
+
+    /**
+     * Maps the current row of a result set to an object.
+     * Implementations must not move the cursor.
+     *
+     * @param <T> Row type.
+     */
+    @FunctionalInterface
+    interface RowMapper<T> {
+        /**
+         * @param resultSet Result set positioned on the row to map.
+         * @return Mapped row.
+         * @throws SQLException On read error.
+         */
+        T map(ResultSet resultSet) throws SQLException;
+    }
 }
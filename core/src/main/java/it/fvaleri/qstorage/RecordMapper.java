@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.QueryableStorage.RowMapper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Maps result set rows to records through a single method handle that
+ * reads each column with a typed getter and invokes the canonical constructor.
+ * Columns are matched to record components by name, ignoring case and underscores,
+ * or by position when names do not match.
+ * Primitive components get zero when the column value is null.
+ */
+final class RecordMapper<T extends Record> implements RowMapper<T> {
+    private static final Map<Class<?>, String> GETTERS = Map.of(
+        boolean.class, "getBoolean",
+        byte.class, "getByte",
+        short.class, "getShort",
+        int.class, "getInt",
+        long.class, "getLong",
+        float.class, "getFloat",
+        double.class, "getDouble",
+        String.class, "getString",
+        BigDecimal.class, "getBigDecimal"
+    );
+
+    private final MethodHandle handle;
+
+    private RecordMapper(MethodHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Create a mapper for a record type and result set.
+     *
+     * @param recordType Record type.
+     * @param metaData Result set metadata used to match columns.
+     * @return Record mapper.
+     */
+    static <T extends Record> RecordMapper<T> create(Class<T> recordType, ResultSetMetaData metaData) {
+        try {
+            RecordComponent[] components = recordType.getRecordComponents();
+            int[] columns = columnIndexes(components, metaData);
+            Class<?>[] paramTypes = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                paramTypes[i] = components[i].getType();
+            }
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(recordType, MethodHandles.lookup());
+            MethodHandle handle = lookup.findConstructor(recordType, MethodType.methodType(void.class, paramTypes));
+            for (int i = 0; i < components.length; i++) {
+                handle = MethodHandles.filterArguments(handle, i, getter(paramTypes[i], columns[i]));
+            }
+            // all filters take the same result set argument
+            handle = MethodHandles.permuteArguments(handle,
+                MethodType.methodType(recordType, ResultSet.class), new int[components.length]);
+            return new RecordMapper<>(handle.asType(MethodType.methodType(Object.class, ResultSet.class)));
+        } catch (ReflectiveOperationException | SQLException e) {
+            throw new IllegalArgumentException(format("Invalid record type %s: %s", recordType.getName(), e.getMessage()));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T map(ResultSet resultSet) throws SQLException {
+        try {
+            Object result = handle.invokeExact(resultSet);
+            return (T) result;
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int[] columnIndexes(RecordComponent[] components, ResultSetMetaData metaData) throws SQLException {
+        int[] columns = new int[components.length];
+        Map<String, Integer> labels = new HashMap<>();
+        if (metaData != null) {
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                labels.putIfAbsent(normalize(metaData.getColumnLabel(i)), i);
+            }
+        }
+        for (int i = 0; i < components.length; i++) {
+            Integer column = labels.get(normalize(components[i].getName()));
+            if (column == null) {
+                // fall back to positional mapping
+                for (int j = 0; j < components.length; j++) {
+                    columns[j] = j + 1;
+                }
+                return columns;
+            }
+            columns[i] = column;
+        }
+        return columns;
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static MethodHandle getter(Class<?> type, int column) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        String getter = GETTERS.get(type);
+        MethodHandle handle;
+        if (getter != null) {
+            handle = lookup.findVirtual(ResultSet.class, getter, MethodType.methodType(type, int.class));
+            handle = MethodHandles.insertArguments(handle, 1, column);
+        } else {
+            handle = lookup.findVirtual(ResultSet.class, "getObject",
+                MethodType.methodType(Object.class, int.class, Class.class));
+            handle = MethodHandles.insertArguments(handle, 1, column, type);
+            handle = handle.asType(MethodType.methodType(type, ResultSet.class));
+        }
+        return handle;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import javax.sql.DataSource;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Storage that sends writes to a primary database and balances reads across its replicas.
+ * Each node is a {@link JdbcQueryableStorage} with its own connection pool and prepared query catalog,
+ * while metrics are shared by all nodes.
+ * Transactions always run on the primary, and so do reads within the read-your-writes window
+ * that follows any write, or when the calling thread holds a primary connection.
+ */
+public class ReplicatedQueryableStorage implements QueryableStorage {
+    private final Node primary;
+    private final List<Node> replicas;
+    private final StorageConfig.ReadRouting readRouting;
+    private final long readYourWritesNanos;
+    private final AtomicInteger nextReplica;
+    private final StorageMetrics metrics;
+    private volatile long primaryReadsUntilNanos;
+
+    ReplicatedQueryableStorage(DataSource primary, List<DataSource> replicas, Properties queries, StorageConfig config) {
+        if (replicas == null || replicas.stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("Invalid replicas");
+        }
+        QueryCatalog catalog = JdbcQueryableStorage.loadQueries(queries);
+        JdbcQueryableStorage.checkConfig(config);
+        this.readRouting = config.readRouting();
+        this.readYourWritesNanos = config.readYourWritesWindow().toNanos();
+        this.nextReplica = new AtomicInteger();
+        this.primaryReadsUntilNanos = System.nanoTime();
+        this.metrics = new StorageMetrics(catalog.names());
+        this.replicas = new ArrayList<>(replicas.size());
+        Node primaryNode = null;
+        try {
+            primaryNode = new Node(new JdbcQueryableStorage(primary, catalog, config, metrics, true));
+            for (DataSource replica : replicas) {
+                this.replicas.add(new Node(new JdbcQueryableStorage(replica, catalog, config, metrics, false)));
+            }
+            if (config.jmxName() != null) {
+                metrics.register(config.jmxName());
+            }
+        } catch (RuntimeException e) {
+            if (primaryNode != null) {
+                primaryNode.storage.close();
+            }
+            this.replicas.forEach(node -> node.storage.close());
+            throw e;
+        }
+        this.primary = primaryNode;
+    }
+
+    public List<Row> read(String queryName, List<Class<?>> columnTypes) {
+        return onReader(storage -> storage.read(queryName, columnTypes));
+    }
+
+    public List<Row> read(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        return onReader(storage -> storage.read(queryName, columnTypes, queryParams));
+    }
+
+    public <T> List<T> read(String queryName, RowMapper<T> rowMapper, List<Object> queryParams) {
+        return onReader(storage -> storage.read(queryName, rowMapper, queryParams));
+    }
+
+    public <T extends Record> List<T> read(String queryName, Class<T> recordType, List<Object> queryParams) {
+        return onReader(storage -> storage.read(queryName, recordType, queryParams));
+    }
+
+    public Map<Object, List<Row>> readMany(String queryName, List<Class<?>> columnTypes, List<?> keys) {
+        return onReader(storage -> storage.readMany(queryName, columnTypes, keys));
+    }
+
+    public ColumnarResult readColumnar(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        return onReader(storage -> storage.readColumnar(queryName, columnTypes, queryParams));
+    }
+
+    public Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        return stream(queryName, columnTypes, queryParams, 0);
+    }
+
+    public Stream<Row> stream(String queryName, List<Class<?>> columnTypes, List<Object> queryParams, int fetchSize) {
+        Node node = reader();
+        node.outstanding.incrementAndGet();
+        try {
+            return node.storage.stream(queryName, columnTypes, queryParams, fetchSize)
+                .onClose(node.outstanding::decrementAndGet);
+        } catch (RuntimeException e) {
+            node.outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public long readLob(String queryName, List<Object> queryParams, WritableByteChannel channel) {
+        return onReader(storage -> storage.readLob(queryName, queryParams, channel));
+    }
+
+    public Iterator<Page> readPages(String queryName, List<Class<?>> columnTypes, Object afterKey, int pageSize) {
+        return reader().storage.readPages(queryName, columnTypes, afterKey, pageSize);
+    }
+
+    public List<Row> readParallel(String queryName, List<Class<?>> columnTypes,
+                                  long fromKey, long toKey, int partitions) {
+        return onReader(storage -> storage.readParallel(queryName, columnTypes, fromKey, toKey, partitions));
+    }
+
+    public CompletableFuture<List<Row>> readAsync(String queryName, List<Class<?>> columnTypes, List<Object> queryParams) {
+        Node node = reader();
+        node.outstanding.incrementAndGet();
+        try {
+            return node.storage.readAsync(queryName, columnTypes, queryParams)
+                .whenComplete((rows, error) -> node.outstanding.decrementAndGet());
+        } catch (RuntimeException e) {
+            node.outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public int write(String queryName) {
+        return onPrimary(storage -> storage.write(queryName));
+    }
+
+    public int write(String queryName, List<Object> queryParams) {
+        return onPrimary(storage -> storage.write(queryName, queryParams));
+    }
+
+    public <K> K writeReturningKey(String queryName, List<Object> queryParams, Class<K> keyType) {
+        return onPrimary(storage -> storage.writeReturningKey(queryName, queryParams, keyType));
+    }
+
+    public <K> List<K> writeBatchReturningKeys(String queryName, List<List<Object>> rows, Class<K> keyType) {
+        return onPrimary(storage -> storage.writeBatchReturningKeys(queryName, rows, keyType));
+    }
+
+    public BulkResult writeAll(String queryName, Stream<List<Object>> rows) {
+        return onPrimary(storage -> storage.writeAll(queryName, rows));
+    }
+
+    public BulkResult writeAll(String queryName, Stream<List<Object>> rows, BulkOptions options) {
+        return onPrimary(storage -> storage.writeAll(queryName, rows, options));
+    }
+
+    public CompletableFuture<Integer> writeAsync(String queryName, List<Object> queryParams) {
+        return primary.storage.writeAsync(queryName, queryParams).whenComplete((rows, error) -> markWrite());
+    }
+
+    public int write(String queryName, List<Object> queryParams, int batchSize) {
+        return onPrimary(storage -> storage.write(queryName, queryParams, batchSize));
+    }
+
+    /**
+     * The unit of work receives the primary storage, so all its queries run on the primary.
+     */
+    public <T> T inTransaction(Function<QueryableStorage, T> work) {
+        return onPrimary(storage -> storage.inTransaction(work));
+    }
+
+    public int flush() {
+        return onPrimary(JdbcQueryableStorage::flush);
+    }
+
+    public int flush(String queryName) {
+        return onPrimary(storage -> storage.flush(queryName));
+    }
+
+    /**
+     * The new catalog is checked on every node before it replaces the current one,
+     * so that all nodes keep serving the same catalog.
+     */
+    public synchronized void reload(Properties queries) {
+        QueryCatalog catalog = JdbcQueryableStorage.loadQueries(queries);
+        for (Node node : nodes()) {
+            node.storage.checkCatalog(catalog);
+        }
+        for (Node node : nodes()) {
+            node.storage.swapCatalog(catalog);
+        }
+    }
+
+    public StorageMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        // the primary is closed first, so that pending batches are flushed before anything else
+        RuntimeException error = null;
+        for (Node node : nodes()) {
+            try {
+                node.storage.close();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        metrics.unregister();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private List<Node> nodes() {
+        List<Node> nodes = new ArrayList<>(replicas.size() + 1);
+        nodes.add(primary);
+        nodes.addAll(replicas);
+        return nodes;
+    }
+
+    private <T> T onReader(Function<JdbcQueryableStorage, T> read) {
+        Node node = reader();
+        node.outstanding.incrementAndGet();
+        try {
+            return read.apply(node.storage);
+        } finally {
+            node.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * The window also starts after a failed write, because part of it may have been applied.
+     */
+    private <T> T onPrimary(Function<JdbcQueryableStorage, T> write) {
+        try {
+            return write.apply(primary.storage);
+        } finally {
+            markWrite();
+        }
+    }
+
+    private void markWrite() {
+        if (readYourWritesNanos > 0) {
+            primaryReadsUntilNanos = System.nanoTime() + readYourWritesNanos;
+        }
+    }
+
+    private Node reader() {
+        if (replicas.isEmpty() || primary.storage.holdsConnection()
+                || (readYourWritesNanos > 0 && System.nanoTime() - primaryReadsUntilNanos < 0)) {
+            return primary;
+        }
+        int next = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        if (readRouting == StorageConfig.ReadRouting.ROUND_ROBIN) {
+            return replicas.get(next);
+        }
+        // ties are broken in round-robin order, so idle replicas share the load
+        Node best = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Node node = replicas.get((next + i) % replicas.size());
+            if (best == null || node.outstanding.get() < best.outstanding.get()) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private static final class Node {
+        private final JdbcQueryableStorage storage;
+        private final AtomicInteger outstanding;
+
+        Node(JdbcQueryableStorage storage) {
+            this.storage = storage;
+            this.outstanding = new AtomicInteger();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.StorageMetrics.SlowQuery;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+/**
+ * Log of queries slower than a threshold, or sampled at a fixed rate.
+ * Entries are rate limited per second, and the ones that exceed the limit are counted
+ * as suppressed in the next entry. The plan is captured and the sink is called
+ * by the async executor, so the caller only pays for copying the parameters.
+ */
+final class SlowQueryLog {
+    private static final System.Logger LOGGER = System.getLogger(SlowQueryLog.class.getPackageName());
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long thresholdNanos;
+    private final double sampling;
+    private final int maxPerSecond;
+    private final boolean redaction;
+    private final Consumer<SlowQuery> sink;
+    private final BiFunction<String, List<Object>, String> explainer;
+    private final Consumer<Runnable> executor;
+
+    private long windowStartNanos;
+    private int windowCount;
+    private long suppressed;
+
+    /**
+     * @param config Storage config.
+     * @param explainer Function returning the plan of a query with its parameters, or null.
+     * @param executor Executor used to capture the plan and call the sink.
+     */
+    SlowQueryLog(StorageConfig config, BiFunction<String, List<Object>, String> explainer, Consumer<Runnable> executor) {
+        this.thresholdNanos = config.slowQueryThreshold().toNanos();
+        this.sampling = config.slowQuerySampling();
+        this.maxPerSecond = config.slowQueryRate();
+        this.redaction = config.slowQueryRedaction();
+        this.sink = config.slowQuerySink() != null ? config.slowQuerySink() : SlowQueryLog::log;
+        this.explainer = explainer;
+        this.executor = executor;
+    }
+
+    static boolean enabled(StorageConfig config) {
+        return !config.slowQueryThreshold().isZero() || config.slowQuerySampling() > 0;
+    }
+
+    /**
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @param rows Number of rows read or updated.
+     * @param elapsedNanos Execution latency.
+     */
+    void record(String queryName, List<?> queryParams, long rows, long elapsedNanos) {
+        boolean slow = thresholdNanos > 0 && elapsedNanos >= thresholdNanos;
+        if (!slow && (sampling == 0 || ThreadLocalRandom.current().nextDouble() >= sampling)) {
+            return;
+        }
+        long suppressedCount = tryAcquire(System.nanoTime());
+        if (suppressedCount < 0) {
+            return;
+        }
+        List<Object> params = queryParams != null ? new ArrayList<>(queryParams) : List.of();
+        executor.accept(() -> {
+            String plan = explainer.apply(queryName, params);
+            sink.accept(new SlowQuery(queryName, Collections.unmodifiableList(redaction ? redact(params) : params),
+                rows, Duration.ofNanos(elapsedNanos), !slow, plan, suppressedCount));
+        });
+    }
+
+    /**
+     * @return Number of entries suppressed since the last one, or -1 if the limit is exceeded.
+     */
+    private synchronized long tryAcquire(long nowNanos) {
+        if (nowNanos - windowStartNanos >= WINDOW_NANOS) {
+            windowStartNanos = nowNanos;
+            windowCount = 0;
+        }
+        if (windowCount >= maxPerSecond) {
+            suppressed++;
+            return -1;
+        }
+        windowCount++;
+        long suppressedCount = suppressed;
+        suppressed = 0;
+        return suppressedCount;
+    }
+
+    /**
+     * Values are replaced by their type, so that entries can still be matched to the template.
+     */
+    private static List<Object> redact(List<Object> params) {
+        List<Object> redacted = new ArrayList<>(params.size());
+        for (Object param : params) {
+            redacted.add(param == null ? null : format("<%s>", param.getClass().getSimpleName()));
+        }
+        return redacted;
+    }
+
+    private static void log(SlowQuery slowQuery) {
+        LOGGER.log(System.Logger.Level.WARNING, () -> format("%s query %s took %d ms (params: %s, rows: %d, suppressed: %d)%s",
+            slowQuery.sampled() ? "Sampled" : "Slow", slowQuery.queryName(), slowQuery.elapsed().toMillis(),
+            slowQuery.queryParams(), slowQuery.rows(), slowQuery.suppressed(),
+            slowQuery.plan() != null ? System.lineSeparator() + slowQuery.plan() : ""));
+    }
+}
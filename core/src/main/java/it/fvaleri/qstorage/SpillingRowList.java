@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.QueryableStorage.Row;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static java.lang.String.format;
+
+/**
+ * Row list that keeps rows on the heap up to a memory budget, and then spills all of them
+ * to a temporary file in a compact binary format, through memory-mapped segments.
+ * Spilled rows are decoded on demand, so each access returns a new row,
+ * and only their file offsets stay on the heap.
+ * The file is deleted as soon as it is created, and its space is released
+ * when the list is garbage collected.
+ */
+final class SpillingRowList extends AbstractList<Row> implements RandomAccess {
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    // object header and reference sizes used to estimate the heap size of a row
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+
+    private final long memoryBudget;
+    private final Path dir;
+    private List<Row> heapRows;
+    private long heapBytes;
+
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments;
+    private long[] offsets;
+    private int size;
+    private ByteBuffer scratch;
+
+    /**
+     * @param memoryBudget Maximum estimated heap size of the rows in bytes.
+     * @param dir Directory of the temporary file, or null for the default one.
+     */
+    SpillingRowList(long memoryBudget, Path dir) {
+        this.memoryBudget = memoryBudget;
+        this.dir = dir;
+        this.heapRows = new ArrayList<>();
+        this.segments = new ArrayList<>();
+    }
+
+    /**
+     * @param columnTypes Result column types.
+     * @return True if all column types can be spilled.
+     */
+    static boolean supports(List<Class<?>> columnTypes) {
+        return columnTypes.stream().allMatch(ValueCodec::supports);
+    }
+
+    boolean spilled() {
+        return heapRows == null;
+    }
+
+    @Override
+    public boolean add(Row row) {
+        if (heapRows != null) {
+            heapRows.add(row);
+            heapBytes += estimate(row);
+            if (heapBytes > memoryBudget) {
+                spill();
+            }
+        } else {
+            write(row);
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Row get(int index) {
+        if (heapRows != null) {
+            return heapRows.get(index);
+        }
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(format("Index %d out of bounds for length %d", index, size));
+        }
+        long offset = offsets[index];
+        ByteBuffer buffer = segments.get((int) (offset >>> 32)).duplicate();
+        buffer.position((int) offset);
+        int columnCount = buffer.getInt();
+        List<Object> columns = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            columns.add(ValueCodec.get(buffer));
+        }
+        return new Row(index, columns);
+    }
+
+    @Override
+    public int size() {
+        return heapRows != null ? heapRows.size() : size;
+    }
+
+    private void spill() {
+        try {
+            Path file = dir != null
+                ? Files.createTempFile(dir, "qstorage-spill-", ".bin")
+                : Files.createTempFile("qstorage-spill-", ".bin");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            CLEANER.register(this, new ChannelCloser(channel));
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(format("Spill error: %s", e.getMessage()), e);
+        }
+        offsets = new long[Math.max(heapRows.size() * 2, 1024)];
+        scratch = ByteBuffer.allocate(8 * 1024);
+        List<Row> rows = heapRows;
+        heapRows = null;
+        for (Row row : rows) {
+            write(row);
+        }
+    }
+
+    /**
+     * Each row is encoded in a scratch buffer first, so that it never spans two segments.
+     * The offset of a row holds its segment index in the high 32 bits.
+     */
+    private void write(Row row) {
+        ByteBuffer encoded = encode(row.columns());
+        MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.remaining() < encoded.remaining()) {
+            segment = map(Math.max(SEGMENT_SIZE, encoded.remaining()));
+        }
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = ((long) (segments.size() - 1) << 32) | segment.position();
+        segment.put(encoded);
+    }
+
+    private ByteBuffer encode(List<Object> columns) {
+        while (true) {
+            try {
+                scratch.clear();
+                scratch.putInt(columns.size());
+                for (Object value : columns) {
+                    ValueCodec.put(scratch, value);
+                }
+                return scratch.flip();
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(int segmentSize) {
+        try {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, channel.size(), segmentSize);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(format("Spill error: %s", e.getMessage()), e);
+        }
+    }
+
+    private static long estimate(Row row) {
+        List<Object> columns = row.columns();
+        long bytes = 3 * OBJECT_BYTES + REFERENCE_BYTES * (2L + columns.size());
+        for (Object value : columns) {
+            if (value instanceof String) {
+                bytes += 2 * OBJECT_BYTES + ((String) value).length();
+            } else if (value instanceof byte[]) {
+                bytes += OBJECT_BYTES + ((byte[]) value).length;
+            } else if (value instanceof BigDecimal) {
+                bytes += 4 * OBJECT_BYTES;
+            } else if (value != null) {
+                bytes += 2 * OBJECT_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private record ChannelCloser(FileChannel channel) implements Runnable {
+        @Override
+        public void run() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
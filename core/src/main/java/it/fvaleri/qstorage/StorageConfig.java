@@ -0,0 +1,647 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import it.fvaleri.qstorage.StorageMetrics.SlowQuery;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Queryable storage configuration.
+ * Setters can be chained and all values have sensible defaults.
+ */
+public class StorageConfig {
+    private int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+    private Duration acquireTimeout = Duration.ofSeconds(30);
+    private boolean lazyPrepare;
+    private int statementCacheSize;
+    private Executor executor;
+    private Duration batchLinger = Duration.ZERO;
+    private int cacheSize;
+    private Duration cacheTtl = Duration.ZERO;
+    private String jmxName;
+    private Duration groupCommitWindow = Duration.ZERO;
+    private ReadRouting readRouting = ReadRouting.ROUND_ROBIN;
+    private Duration readYourWritesWindow = Duration.ZERO;
+    private Path journalDir;
+    private int journalSegmentSize = 16 * 1024 * 1024;
+    private boolean journalSync;
+    private String journalTable = "QSTORAGE_JOURNAL";
+    private long readMemoryBudget;
+    private Path spillDir;
+    private Duration adaptiveBatchLatency = Duration.ofMillis(50);
+    private int minAdaptiveBatchSize = 16;
+    private int maxAdaptiveBatchSize = 10_000;
+    private Duration slowQueryThreshold = Duration.ZERO;
+    private double slowQuerySampling;
+    private int slowQueryRate = 10;
+    private boolean slowQueryRedaction;
+    private Consumer<SlowQuery> slowQuerySink;
+    private Duration queueTimeout = Duration.ofSeconds(1);
+
+    /**
+     * @return Maximum number of pooled connections.
+     */
+    public int poolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Set the maximum number of pooled connections.
+     * Defaults to twice the number of available processors.
+     *
+     * @param poolSize Pool size.
+     * @return This config.
+     */
+    public StorageConfig poolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Invalid pool size");
+        }
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * @return Maximum time to wait for a pooled connection.
+     */
+    public Duration acquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Set the maximum time to wait for a pooled connection.
+     * Defaults to 30 seconds.
+     *
+     * @param acquireTimeout Acquire timeout.
+     * @return This config.
+     */
+    public StorageConfig acquireTimeout(Duration acquireTimeout) {
+        if (acquireTimeout == null || acquireTimeout.isNegative()) {
+            throw new IllegalArgumentException("Invalid acquire timeout");
+        }
+        this.acquireTimeout = acquireTimeout;
+        return this;
+    }
+
+    /**
+     * @return True if statements are prepared on first use.
+     */
+    public boolean lazyPrepare() {
+        return lazyPrepare;
+    }
+
+    /**
+     * Set whether statements are prepared on first use instead of when a connection is created.
+     * Lazy preparation makes startup independent of the catalog size,
+     * but invalid query templates are only reported when first executed.
+     * Defaults to false.
+     *
+     * @param lazyPrepare Lazy prepare.
+     * @return This config.
+     */
+    public StorageConfig lazyPrepare(boolean lazyPrepare) {
+        this.lazyPrepare = lazyPrepare;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of prepared statements cached by each connection.
+     */
+    public int statementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set the maximum number of prepared statements cached by each connection.
+     * The least recently used statements are closed when a connection is returned to the pool.
+     * Defaults to zero, which means unbounded.
+     *
+     * @param statementCacheSize Statement cache size.
+     * @return This config.
+     */
+    public StorageConfig statementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid statement cache size");
+        }
+        this.statementCacheSize = statementCacheSize;
+        return this;
+    }
+
+    /**
+     * @return Executor for asynchronous queries, or null for the default one.
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor for asynchronous queries.
+     * The default executor uses virtual threads when the runtime supports them,
+     * otherwise a platform thread per pooled connection.
+     * A custom executor is not shut down when the storage is closed.
+     *
+     * @param executor Executor.
+     * @return This config.
+     */
+    public StorageConfig executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return Maximum time a partial write batch waits before being executed.
+     */
+    public Duration batchLinger() {
+        return batchLinger;
+    }
+
+    /**
+     * Set the maximum time a partial write batch waits before being executed.
+     * Partial batches are flushed by a background thread when this time expires.
+     * Defaults to zero, which means they wait for an explicit flush or close.
+     *
+     * @param batchLinger Batch linger time.
+     * @return This config.
+     */
+    public StorageConfig batchLinger(Duration batchLinger) {
+        if (batchLinger == null || batchLinger.isNegative()) {
+            throw new IllegalArgumentException("Invalid batch linger");
+        }
+        this.batchLinger = batchLinger;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of cached read results.
+     */
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the maximum number of cached read results.
+     * Only queries with the {@code cache} attribute set to true are cached,
+     * and the least recently used entry is evicted when the cache is full.
+     * Defaults to zero, which disables the cache.
+     *
+     * @param cacheSize Cache size.
+     * @return This config.
+     */
+    public StorageConfig cacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Invalid cache size");
+        }
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * @return Maximum time a read result stays cached.
+     */
+    public Duration cacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Set the maximum time a read result stays cached.
+     * Cached results are also invalidated when a write query touches one of their tables.
+     * Defaults to zero, which means no expiration.
+     *
+     * @param cacheTtl Cache TTL.
+     * @return This config.
+     */
+    public StorageConfig cacheTtl(Duration cacheTtl) {
+        if (cacheTtl == null || cacheTtl.isNegative()) {
+            throw new IllegalArgumentException("Invalid cache TTL");
+        }
+        this.cacheTtl = cacheTtl;
+        return this;
+    }
+
+    /**
+     * @return Storage name used to register JMX metrics, or null if disabled.
+     */
+    public String jmxName() {
+        return jmxName;
+    }
+
+    /**
+     * Set the storage name used to register per-query metrics as JMX MBeans.
+     * The name must be unique within the JVM, and MBeans are unregistered when the storage is closed.
+     * Defaults to null, which means metrics are only available through {@link QueryableStorage#metrics()}.
+     *
+     * @param jmxName JMX name.
+     * @return This config.
+     */
+    public StorageConfig jmxName(String jmxName) {
+        if (jmxName != null && jmxName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid JMX name");
+        }
+        this.jmxName = jmxName;
+        return this;
+    }
+
+    /**
+     * @return Maximum time an asynchronous write waits for other writes to share its commit.
+     */
+    public Duration groupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    /**
+     * Set the maximum time an asynchronous write waits for other writes to share its commit.
+     * When enabled, asynchronous writes are executed by a background thread in groups,
+     * each one in a single transaction, and their futures complete after the commit.
+     * A failed write is rolled back and the rest of its group is retried without it.
+     * Defaults to zero, which executes each asynchronous write in its own transaction.
+     *
+     * @param groupCommitWindow Group commit window.
+     * @return This config.
+     */
+    public StorageConfig groupCommitWindow(Duration groupCommitWindow) {
+        if (groupCommitWindow == null || groupCommitWindow.isNegative()) {
+            throw new IllegalArgumentException("Invalid group commit window");
+        }
+        this.groupCommitWindow = groupCommitWindow;
+        return this;
+    }
+
+    /**
+     * @return How reads are balanced across replicas.
+     */
+    public ReadRouting readRouting() {
+        return readRouting;
+    }
+
+    /**
+     * Set how reads are balanced across replicas, when the storage has any.
+     * Defaults to round-robin.
+     *
+     * @param readRouting Read routing.
+     * @return This config.
+     */
+    public StorageConfig readRouting(ReadRouting readRouting) {
+        if (readRouting == null) {
+            throw new IllegalArgumentException("Invalid read routing");
+        }
+        this.readRouting = readRouting;
+        return this;
+    }
+
+    /**
+     * @return Time after a write during which reads are sent to the primary.
+     */
+    public Duration readYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    /**
+     * Set the time after a write during which reads are sent to the primary, when the storage has replicas,
+     * so that they see the write even if replicas are lagging behind.
+     * Defaults to zero, which always sends reads to replicas.
+     *
+     * @param readYourWritesWindow Read-your-writes window.
+     * @return This config.
+     */
+    public StorageConfig readYourWritesWindow(Duration readYourWritesWindow) {
+        if (readYourWritesWindow == null || readYourWritesWindow.isNegative()) {
+            throw new IllegalArgumentException("Invalid read-your-writes window");
+        }
+        this.readYourWritesWindow = readYourWritesWindow;
+        return this;
+    }
+
+    /**
+     * @return Write-behind journal directory, or null if disabled.
+     */
+    public Path journalDir() {
+        return journalDir;
+    }
+
+    /**
+     * Set the write-behind journal directory.
+     * When enabled, writes outside transactions are appended to a local journal on memory-mapped files
+     * and return at once, while a background thread applies them to the database in large batches.
+     * Entries that were not applied are replayed on the next start, skipping the ones recorded as applied
+     * in the journal table, which is updated in the same transaction as the entries.
+     * Defaults to null, which executes writes directly.
+     *
+     * @param journalDir Journal directory.
+     * @return This config.
+     */
+    public StorageConfig journalDir(Path journalDir) {
+        this.journalDir = journalDir;
+        return this;
+    }
+
+    /**
+     * @return Journal segment file size in bytes.
+     */
+    public int journalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * Set the journal segment file size in bytes, which is also the maximum size of a journaled write.
+     * Defaults to 16 MiB.
+     *
+     * @param journalSegmentSize Journal segment size.
+     * @return This config.
+     */
+    public StorageConfig journalSegmentSize(int journalSegmentSize) {
+        if (journalSegmentSize < 4096) {
+            throw new IllegalArgumentException("Invalid journal segment size");
+        }
+        this.journalSegmentSize = journalSegmentSize;
+        return this;
+    }
+
+    /**
+     * @return True if each journaled write is forced to disk.
+     */
+    public boolean journalSync() {
+        return journalSync;
+    }
+
+    /**
+     * Set whether each journaled write is forced to disk before returning.
+     * Without it, journaled writes survive a process crash but not an operating system crash.
+     * Defaults to false.
+     *
+     * @param journalSync Journal sync.
+     * @return This config.
+     */
+    public StorageConfig journalSync(boolean journalSync) {
+        this.journalSync = journalSync;
+        return this;
+    }
+
+    /**
+     * @return Journal table name.
+     */
+    public String journalTable() {
+        return journalTable;
+    }
+
+    /**
+     * Set the table where the sequence number of the last applied journal entry is saved.
+     * The table is created on first use, and it can be shared by storages with different journal directories.
+     * Defaults to QSTORAGE_JOURNAL.
+     *
+     * @param journalTable Journal table name.
+     * @return This config.
+     */
+    public StorageConfig journalTable(String journalTable) {
+        if (journalTable == null || !journalTable.matches("[\\w.]+")) {
+            throw new IllegalArgumentException("Invalid journal table");
+        }
+        this.journalTable = journalTable;
+        return this;
+    }
+
+    /**
+     * @return Maximum estimated heap size of a read result in bytes.
+     */
+    public long readMemoryBudget() {
+        return readMemoryBudget;
+    }
+
+    /**
+     * Set the maximum estimated heap size of a read result in bytes.
+     * Larger results are spilled to a temporary file in a compact binary format,
+     * and rows are decoded when accessed, so huge reads do not exhaust the heap.
+     * Only results of uncached queries whose column types are all simple types are spilled.
+     * Defaults to zero, which keeps all results on the heap.
+     *
+     * @param readMemoryBudget Read memory budget.
+     * @return This config.
+     */
+    public StorageConfig readMemoryBudget(long readMemoryBudget) {
+        if (readMemoryBudget < 0) {
+            throw new IllegalArgumentException("Invalid read memory budget");
+        }
+        this.readMemoryBudget = readMemoryBudget;
+        return this;
+    }
+
+    /**
+     * @return Directory of spilled read results, or null for the default temporary directory.
+     */
+    public Path spillDir() {
+        return spillDir;
+    }
+
+    /**
+     * Set the directory of spilled read results.
+     * Defaults to null, which uses the default temporary directory.
+     *
+     * @param spillDir Spill directory.
+     * @return This config.
+     */
+    public StorageConfig spillDir(Path spillDir) {
+        this.spillDir = spillDir;
+        return this;
+    }
+
+    /**
+     * @return Target latency of adaptive batches.
+     */
+    public Duration adaptiveBatchLatency() {
+        return adaptiveBatchLatency;
+    }
+
+    /**
+     * Set the target latency of adaptive batches, which are written with
+     * {@link QueryableStorage#ADAPTIVE_BATCH_SIZE}.
+     * The batch size of each query grows while its batches complete within the target latency,
+     * and it is halved when a batch exceeds it.
+     * Defaults to 50 milliseconds.
+     *
+     * @param adaptiveBatchLatency Adaptive batch latency.
+     * @return This config.
+     */
+    public StorageConfig adaptiveBatchLatency(Duration adaptiveBatchLatency) {
+        if (adaptiveBatchLatency == null || adaptiveBatchLatency.isNegative() || adaptiveBatchLatency.isZero()) {
+            throw new IllegalArgumentException("Invalid adaptive batch latency");
+        }
+        this.adaptiveBatchLatency = adaptiveBatchLatency;
+        return this;
+    }
+
+    /**
+     * @return Minimum size of adaptive batches.
+     */
+    public int minAdaptiveBatchSize() {
+        return minAdaptiveBatchSize;
+    }
+
+    /**
+     * @return Maximum size of adaptive batches.
+     */
+    public int maxAdaptiveBatchSize() {
+        return maxAdaptiveBatchSize;
+    }
+
+    /**
+     * Set the size limits of adaptive batches.
+     * The minimum size is also the initial size and the increase step.
+     * Defaults to 16 and 10000.
+     *
+     * @param minAdaptiveBatchSize Minimum adaptive batch size.
+     * @param maxAdaptiveBatchSize Maximum adaptive batch size.
+     * @return This config.
+     */
+    public StorageConfig adaptiveBatchSize(int minAdaptiveBatchSize, int maxAdaptiveBatchSize) {
+        if (minAdaptiveBatchSize < 2 || maxAdaptiveBatchSize < minAdaptiveBatchSize) {
+            throw new IllegalArgumentException("Invalid adaptive batch size");
+        }
+        this.minAdaptiveBatchSize = minAdaptiveBatchSize;
+        this.maxAdaptiveBatchSize = maxAdaptiveBatchSize;
+        return this;
+    }
+
+    /**
+     * @return Slow query threshold.
+     */
+    public Duration slowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * Set the latency above which reads and writes are logged with their parameters
+     * and execution plan, which is captured with {@code EXPLAIN} where supported.
+     * Defaults to zero, which disables the threshold.
+     *
+     * @param slowQueryThreshold Slow query threshold.
+     * @return This config.
+     */
+    public StorageConfig slowQueryThreshold(Duration slowQueryThreshold) {
+        if (slowQueryThreshold == null || slowQueryThreshold.isNegative()) {
+            throw new IllegalArgumentException("Invalid slow query threshold");
+        }
+        this.slowQueryThreshold = slowQueryThreshold;
+        return this;
+    }
+
+    /**
+     * @return Fraction of queries logged regardless of latency.
+     */
+    public double slowQuerySampling() {
+        return slowQuerySampling;
+    }
+
+    /**
+     * Set the fraction of reads and writes that are logged regardless of their latency.
+     * Defaults to zero.
+     *
+     * @param slowQuerySampling Slow query sampling between zero and one.
+     * @return This config.
+     */
+    public StorageConfig slowQuerySampling(double slowQuerySampling) {
+        if (!(slowQuerySampling >= 0 && slowQuerySampling <= 1)) {
+            throw new IllegalArgumentException("Invalid slow query sampling");
+        }
+        this.slowQuerySampling = slowQuerySampling;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of slow queries logged per second.
+     */
+    public int slowQueryRate() {
+        return slowQueryRate;
+    }
+
+    /**
+     * Set the maximum number of slow queries logged per second.
+     * Defaults to 10.
+     *
+     * @param slowQueryRate Slow query rate.
+     * @return This config.
+     */
+    public StorageConfig slowQueryRate(int slowQueryRate) {
+        if (slowQueryRate <= 0) {
+            throw new IllegalArgumentException("Invalid slow query rate");
+        }
+        this.slowQueryRate = slowQueryRate;
+        return this;
+    }
+
+    /**
+     * @return Whether slow query parameters are redacted.
+     */
+    public boolean slowQueryRedaction() {
+        return slowQueryRedaction;
+    }
+
+    /**
+     * Replace slow query parameters with their type.
+     *
+     * @param slowQueryRedaction Slow query redaction.
+     * @return This config.
+     */
+    public StorageConfig slowQueryRedaction(boolean slowQueryRedaction) {
+        this.slowQueryRedaction = slowQueryRedaction;
+        return this;
+    }
+
+    /**
+     * @return Slow query sink.
+     */
+    public Consumer<SlowQuery> slowQuerySink() {
+        return slowQuerySink;
+    }
+
+    /**
+     * Set the sink of slow queries, which is called by the async executor.
+     * Defaults to a {@link System.Logger} with warning level.
+     *
+     * @param slowQuerySink Slow query sink.
+     * @return This config.
+     */
+    public StorageConfig slowQuerySink(Consumer<SlowQuery> slowQuerySink) {
+        if (slowQuerySink == null) {
+            throw new IllegalArgumentException("Invalid slow query sink");
+        }
+        this.slowQuerySink = slowQuerySink;
+        return this;
+    }
+
+    /**
+     * @return Maximum time an execution waits for admission.
+     */
+    public Duration queueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * Set the maximum time an execution waits for admission when the concurrency
+     * attribute of its query is exceeded, after which it is rejected.
+     * Defaults to 1 second.
+     *
+     * @param queueTimeout Queue timeout.
+     * @return This config.
+     */
+    public StorageConfig queueTimeout(Duration queueTimeout) {
+        if (queueTimeout == null || queueTimeout.isNegative()) {
+            throw new IllegalArgumentException("Invalid queue timeout");
+        }
+        this.queueTimeout = queueTimeout;
+        return this;
+    }
+
+    /**
+     * Strategy for balancing reads across replicas.
+     */
+    public enum ReadRouting {
+        /** Each read goes to the next replica in turn. */
+        ROUND_ROBIN,
+        /** Each read goes to the replica with the least reads in progress. */
+        LEAST_OUTSTANDING
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.lang.String.format;
+
+/**
+ * Per-query metrics of a storage instance.
+ * There is one set of counters and latency histograms for each query in the catalog,
+ * created upfront so that recording is lock-free and does not allocate.
+ * Metrics can also be exposed as JMX MBeans (see {@link StorageConfig#jmxName(String)}).
+ */
+public final class StorageMetrics {
+    static final String JMX_DOMAIN = "it.fvaleri.qstorage";
+
+    private volatile Map<String, QueryMetrics> queries;
+    private final List<ObjectName> registered;
+    private String storageName;
+
+    StorageMetrics(Set<String> queryNames) {
+        this.queries = Collections.emptyMap();
+        this.registered = new ArrayList<>();
+        add(queryNames);
+    }
+
+    /**
+     * Add metrics for new queries, which are registered if the storage is registered.
+     * Metrics of queries removed from the catalog are kept.
+     *
+     * @param queryNames Query names.
+     */
+    synchronized void add(Set<String> queryNames) {
+        if (queries.keySet().containsAll(queryNames)) {
+            return;
+        }
+        Set<String> names = new TreeSet<>(queries.keySet());
+        names.addAll(queryNames);
+        Map<String, QueryMetrics> updated = new LinkedHashMap<>();
+        for (String queryName : names) {
+            updated.put(queryName, queries.getOrDefault(queryName, new QueryMetrics()));
+        }
+        Map<String, QueryMetrics> previous = queries;
+        this.queries = Collections.unmodifiableMap(updated);
+        if (storageName != null) {
+            try {
+                for (Map.Entry<String, QueryMetrics> entry : updated.entrySet()) {
+                    if (!previous.containsKey(entry.getKey())) {
+                        registerQuery(entry.getKey(), entry.getValue());
+                    }
+                }
+            } catch (JMException e) {
+                // the query metrics are still available through the storage
+            }
+        }
+    }
+
+    /**
+     * @return Names of the queries with metrics in alphabetical order.
+     */
+    public Set<String> queryNames() {
+        return queries.keySet();
+    }
+
+    /**
+     * Get a snapshot of the metrics of a query.
+     *
+     * @param queryName Query name.
+     * @return Query stats.
+     */
+    public QueryStats query(String queryName) {
+        QueryMetrics metrics = queries.get(queryName);
+        if (metrics == null) {
+            throw new IllegalArgumentException(format("Query %s not found", queryName));
+        }
+        return metrics.stats();
+    }
+
+    /**
+     * @return Snapshot of the metrics of all queries by query name.
+     */
+    public Map<String, QueryStats> queries() {
+        Map<String, QueryStats> result = new LinkedHashMap<>();
+        for (Map.Entry<String, QueryMetrics> entry : queries.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().stats());
+        }
+        return result;
+    }
+
+    QueryMetrics metrics(String queryName) {
+        return queries.get(queryName);
+    }
+
+    /**
+     * Register one MBean for each query with name
+     * {@code it.fvaleri.qstorage:type=QueryMetrics,storage=<storage name>,query=<query name>}.
+     *
+     * @param storageName Storage name.
+     */
+    synchronized void register(String storageName) {
+        this.storageName = storageName;
+        try {
+            for (Map.Entry<String, QueryMetrics> entry : queries.entrySet()) {
+                registerQuery(entry.getKey(), entry.getValue());
+            }
+        } catch (JMException e) {
+            unregister();
+            throw new IllegalArgumentException(format("Invalid JMX name %s: %s", storageName, e.getMessage()));
+        }
+    }
+
+    private void registerQuery(String queryName, QueryMetrics metrics) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(format("%s:type=QueryMetrics,storage=%s,query=%s",
+            JMX_DOMAIN, ObjectName.quote(storageName), ObjectName.quote(queryName)));
+        server.registerMBean(new StandardMBean(metrics, QueryMetricsMBean.class), name);
+        registered.add(name);
+    }
+
+    synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // ignore
+            }
+        }
+        registered.clear();
+        storageName = null;
+    }
+
+    /**
+     * Metrics of a query.
+     * Reads and writes count as calls, while batches have their own counters and latency,
+     * because they are executed on behalf of many buffered writes.
+     *
+     * @param calls Number of executions.
+     * @param errors Number of failed executions.
+     * @param rejections Number of executions rejected by admission control.
+     * @param cacheHits Number of reads served by the result cache.
+     * @param rowsRead Number of rows read.
+     * @param rowsWritten Number of rows updated.
+     * @param batches Number of executed batches.
+     * @param batchedRows Number of parameter sets executed in batches.
+     * @param maxBatchSize Largest executed batch.
+     * @param latency Execution latency.
+     * @param batchLatency Batch execution latency.
+     */
+    public record QueryStats(long calls, long errors, long rejections, long cacheHits, long rowsRead,
+                             long rowsWritten, long batches, long batchedRows, long maxBatchSize, Latency latency, Latency batchLatency) {
+        /**
+         * @return Average batch size.
+         */
+        public double avgBatchSize() {
+            return batches == 0 ? 0 : (double) batchedRows / batches;
+        }
+    }
+
+    /**
+     * Latency distribution in microseconds.
+     * Percentiles are approximated with a relative error of at most 12.5%.
+     *
+     * @param count Number of samples.
+     * @param p50Micros Median.
+     * @param p95Micros 95th percentile.
+     * @param p99Micros 99th percentile.
+     * @param maxMicros Maximum.
+     */
+    public record Latency(long count, long p50Micros, long p95Micros, long p99Micros, long maxMicros) { }
+
+    /**
+     * Query logged for exceeding the slow query threshold, or for being sampled.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters, which are replaced by their type when redacted.
+     * @param rows Number of rows read or updated.
+     * @param elapsed Execution latency.
+     * @param sampled Whether the query was sampled rather than slow.
+     * @param plan Execution plan, or null if not supported.
+     * @param suppressed Number of entries suppressed by rate limiting since the previous one.
+     */
+    public record SlowQuery(String queryName, List<Object> queryParams, long rows, Duration elapsed,
+                            boolean sampled, String plan, long suppressed) { }
+}
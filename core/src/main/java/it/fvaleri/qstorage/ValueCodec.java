@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * Compact binary encoding of parameter and column values, each one with a type tag.
+ * Byte buffers are encoded as byte arrays.
+ * Tags are persisted in journal files, so they must never change.
+ */
+final class ValueCodec {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DATE = 4;
+    private static final byte TYPE_LOCAL_DATE = 5;
+    private static final byte TYPE_BIG_DECIMAL = 6;
+    private static final byte TYPE_TIMESTAMP = 7;
+    private static final byte TYPE_BYTES = 8;
+    private static final byte TYPE_SHORT = 9;
+    private static final byte TYPE_DOUBLE = 10;
+    private static final byte TYPE_FLOAT = 11;
+    private static final byte TYPE_BOOLEAN = 12;
+    private static final byte TYPE_LOCAL_DATE_TIME = 13;
+
+    private static final Set<Class<?>> TYPES = Set.of(String.class, Integer.class, Long.class, Date.class,
+        LocalDate.class, BigDecimal.class, Timestamp.class, byte[].class, Short.class, Double.class,
+        Float.class, Boolean.class, LocalDateTime.class);
+
+    private ValueCodec() {
+    }
+
+    static boolean supports(Class<?> type) {
+        return TYPES.contains(type);
+    }
+
+    /**
+     * @param buffer Target buffer.
+     * @param value Value of a supported type, or a byte buffer.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    static void put(ByteBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.put(TYPE_NULL);
+        } else if (value instanceof String) {
+            buffer.put(TYPE_STRING);
+            putBytes(buffer, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Integer) {
+            buffer.put(TYPE_INTEGER).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(TYPE_LONG).putLong((Long) value);
+        } else if (value instanceof Date) {
+            buffer.put(TYPE_DATE).putLong(((Date) value).getTime());
+        } else if (value instanceof LocalDate) {
+            buffer.put(TYPE_LOCAL_DATE).putLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof BigDecimal) {
+            buffer.put(TYPE_BIG_DECIMAL).putInt(((BigDecimal) value).scale());
+            putBytes(buffer, ((BigDecimal) value).unscaledValue().toByteArray());
+        } else if (value instanceof Timestamp) {
+            buffer.put(TYPE_TIMESTAMP).putLong(((Timestamp) value).getTime()).putInt(((Timestamp) value).getNanos());
+        } else if (value instanceof byte[]) {
+            buffer.put(TYPE_BYTES);
+            putBytes(buffer, (byte[]) value);
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer bytes = ((ByteBuffer) value).duplicate();
+            buffer.put(TYPE_BYTES).putInt(bytes.remaining()).put(bytes);
+        } else if (value instanceof Short) {
+            buffer.put(TYPE_SHORT).putShort((Short) value);
+        } else if (value instanceof Double) {
+            buffer.put(TYPE_DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Float) {
+            buffer.put(TYPE_FLOAT).putFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            buffer.put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof LocalDateTime) {
+            LocalDateTime dateTime = (LocalDateTime) value;
+            buffer.put(TYPE_LOCAL_DATE_TIME).putLong(dateTime.toLocalDate().toEpochDay())
+                .putLong(dateTime.toLocalTime().toNanoOfDay());
+        } else {
+            throw new IllegalArgumentException(format("Unsupported data type %s", value.getClass().getName()));
+        }
+    }
+
+    /**
+     * @param buffer Source buffer.
+     * @return Decoded value.
+     * @throws java.nio.BufferUnderflowException If the buffer is truncated.
+     */
+    static Object get(ByteBuffer buffer) {
+        byte type = buffer.get();
+        return switch (type) {
+            case TYPE_NULL -> null;
+            case TYPE_STRING -> new String(getBytes(buffer), StandardCharsets.UTF_8);
+            case TYPE_INTEGER -> buffer.getInt();
+            case TYPE_LONG -> buffer.getLong();
+            case TYPE_DATE -> new Date(buffer.getLong());
+            case TYPE_LOCAL_DATE -> LocalDate.ofEpochDay(buffer.getLong());
+            case TYPE_BIG_DECIMAL -> {
+                int scale = buffer.getInt();
+                yield new BigDecimal(new BigInteger(getBytes(buffer)), scale);
+            }
+            case TYPE_TIMESTAMP -> {
+                Timestamp timestamp = new Timestamp(buffer.getLong());
+                timestamp.setNanos(buffer.getInt());
+                yield timestamp;
+            }
+            case TYPE_BYTES -> getBytes(buffer);
+            case TYPE_SHORT -> buffer.getShort();
+            case TYPE_DOUBLE -> buffer.getDouble();
+            case TYPE_FLOAT -> buffer.getFloat();
+            case TYPE_BOOLEAN -> buffer.get() != 0;
+            case TYPE_LOCAL_DATE_TIME -> LocalDateTime.of(LocalDate.ofEpochDay(buffer.getLong()),
+                LocalTime.ofNanoOfDay(buffer.getLong()));
+            default -> throw new IllegalArgumentException("Invalid value type " + type);
+        };
+    }
+
+    static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
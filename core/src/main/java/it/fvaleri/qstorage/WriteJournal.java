@@ -0,0 +1,515 @@
+/*
+ * Copyright 2018 Federico Valeri.
+ * Licensed under the Apache License 2.0 (see LICENSE file).
+ */
+package it.fvaleri.qstorage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.lang.String.format;
+
+/**
+ * Write-behind journal on memory-mapped segment files.
+ * Each write is appended as an entry with a sequence number, query name, parameters and checksum,
+ * and a background thread applies entries to the database in large batches.
+ * The sequence number of the last applied entry is saved in a checkpoint file,
+ * and segments whose entries are all applied are deleted.
+ * On startup, entries after the checkpoint are replayed. The applier also records the last applied entry
+ * in the database, with the journal id and in the same transaction, so that a batch applied before a crash
+ * is skipped instead of being applied again.
+ * Entries with a valid checksum that cannot be decoded are logged and skipped.
+ */
+final class WriteJournal implements AutoCloseable {
+    static final int MAX_BATCH_SIZE = 10_000;
+
+    private static final System.Logger LOGGER = System.getLogger(WriteJournal.class.getPackageName());
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "journal.checkpoint";
+    private static final String ID = "journal.id";
+    // entry length, sequence number and checksum
+    private static final int ENTRY_OVERHEAD = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // the types that can be bound as query parameters
+    private static final Set<Class<?>> PARAM_TYPES = Set.of(String.class, Integer.class, Long.class,
+        Date.class, LocalDate.class, BigDecimal.class, Timestamp.class, byte[].class);
+
+    private final Path dir;
+    private final String id;
+    private final int segmentSize;
+    private final boolean sync;
+    private final Applier applier;
+    private final Thread thread;
+    private final Object progress;
+
+    // guarded by this
+    private Segment writer;
+    private long nextSeq;
+    private boolean closed;
+
+    // applier thread only
+    private Segment oldest;
+    private Segment readSegment;
+    private int readPosition;
+    private long skippedSeq;
+
+    private volatile long appendedSeq;
+    private volatile long appliedSeq;
+    private volatile RuntimeException applyError;
+    private volatile boolean stopping;
+
+    /**
+     * Open the journal, replaying the entries that were not applied.
+     *
+     * @param dir Journal directory, which is created if missing.
+     * @param segmentSize Segment file size in bytes.
+     * @param sync Force each entry to disk before returning.
+     * @param applier Applies a batch of entries.
+     */
+    WriteJournal(Path dir, int segmentSize, boolean sync, Applier applier) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.applier = applier;
+        this.progress = new Object();
+        try {
+            Files.createDirectories(dir);
+            this.id = readId();
+            this.appliedSeq = readCheckpoint();
+            long lastSeq = appliedSeq;
+            Segment previous = null;
+            for (Path path : segmentPaths()) {
+                Segment segment = recover(path);
+                if (segment.limit == 0) {
+                    // the file name can be taken by a new segment
+                    delete(segment);
+                    continue;
+                }
+                lastSeq = Math.max(lastSeq, segment.lastSeq);
+                if (previous == null) {
+                    oldest = segment;
+                } else {
+                    previous.next = segment;
+                }
+                previous = segment;
+            }
+            this.nextSeq = lastSeq + 1;
+            this.appendedSeq = lastSeq;
+            this.writer = newSegment(nextSeq);
+            if (previous == null) {
+                oldest = writer;
+            } else {
+                previous.next = writer;
+            }
+            this.readSegment = oldest;
+        } catch (IOException e) {
+            throw new UncheckedIOException(format("Journal error: %s", e.getMessage()), e);
+        }
+        this.thread = new Thread(this::run, "qstorage-journal-applier");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Append a write to the journal.
+     *
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     * @return Sequence number of the entry.
+     */
+    long append(String queryName, List<Object> queryParams) {
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Storage closed");
+            }
+            seq = nextSeq;
+            int start = writer.limit;
+            int end = encode(writer.buffer, start, seq, queryName, queryParams);
+            if (end < 0) {
+                if (start == 0) {
+                    throw new IllegalArgumentException("Invalid journal entry size");
+                }
+                roll();
+                start = 0;
+                end = encode(writer.buffer, start, seq, queryName, queryParams);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Invalid journal entry size");
+                }
+            }
+            if (sync) {
+                writer.buffer.force(start, end - start);
+            }
+            nextSeq++;
+            // publishes the entry to the applier
+            writer.limit = end;
+            appendedSeq = seq;
+        }
+        LockSupport.unpark(thread);
+        return seq;
+    }
+
+    /**
+     * Wait until all entries appended before this call are applied.
+     * Fails fast when the applier is retrying a failed batch.
+     */
+    void awaitApplied() {
+        long target = appendedSeq;
+        LockSupport.unpark(thread);
+        synchronized (progress) {
+            while (appliedSeq < target) {
+                RuntimeException error = applyError;
+                if (error != null) {
+                    throw new RuntimeException(format("Journal apply failed: %s", error.getMessage()));
+                }
+                if (!thread.isAlive()) {
+                    throw new IllegalStateException("Storage closed");
+                }
+                try {
+                    progress.wait(TimeUnit.NANOSECONDS.toMillis(IDLE_NANOS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting writes and apply the pending entries.
+     * Entries that cannot be applied are kept for replay on the next start.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopping = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (appliedSeq >= appendedSeq) {
+            for (Segment segment = oldest; segment != null; segment = segment.next) {
+                delete(segment);
+            }
+        } else if (!sync) {
+            writer.buffer.force();
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        List<Cursor> ends = new ArrayList<>();
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        while (true) {
+            batch.clear();
+            ends.clear();
+            int consumed;
+            RuntimeException error = null;
+            try {
+                Cursor scanned = read(batch, ends);
+                if (batch.isEmpty()) {
+                    // entries that were already applied before a restart, or skipped
+                    commit(scanned, skippedSeq);
+                    if (stopping) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    continue;
+                }
+                consumed = applier.apply(id, List.copyOf(batch));
+            } catch (RuntimeException e) {
+                // the thread must survive, or journaled writes would never be applied
+                consumed = 0;
+                error = e;
+            }
+            if (consumed <= 0) {
+                applyError = error != null ? error : new IllegalStateException("No entry applied");
+                synchronized (progress) {
+                    progress.notifyAll();
+                }
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(this, backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+                continue;
+            }
+            applyError = null;
+            backoffNanos = MIN_BACKOFF_NANOS;
+            commit(ends.get(consumed - 1), batch.get(consumed - 1).seq());
+        }
+    }
+
+    /**
+     * Read the next entries without moving the read cursor, skipping the ones already applied or corrupted.
+     *
+     * @return Cursor after the last scanned entry.
+     */
+    private Cursor read(List<Entry> batch, List<Cursor> ends) {
+        Segment segment = readSegment;
+        int position = readPosition;
+        while (batch.size() < MAX_BATCH_SIZE) {
+            // the next segment is linked after the last write to this one
+            Segment next = segment.next;
+            if (position < segment.limit) {
+                ByteBuffer buffer = segment.reader;
+                int length = buffer.getInt(position);
+                long seq = buffer.getLong(position + Integer.BYTES);
+                int end = position + length;
+                if (seq > appliedSeq) {
+                    try {
+                        batch.add(decode(buffer, position + Integer.BYTES + Long.BYTES, end - Integer.BYTES, seq));
+                        ends.add(new Cursor(segment, end));
+                    } catch (IllegalStateException e) {
+                        // its checksum matched, so it would never be decoded
+                        LOGGER.log(System.Logger.Level.ERROR, () -> format("%s, skipping it", e.getMessage()));
+                        skippedSeq = Math.max(skippedSeq, seq);
+                    }
+                }
+                position = end;
+            } else if (next != null) {
+                segment = next;
+                position = 0;
+            } else {
+                break;
+            }
+        }
+        return new Cursor(segment, position);
+    }
+
+    private void commit(Cursor cursor, long seq) {
+        if (seq > appliedSeq) {
+            try {
+                writeCheckpoint(seq);
+            } catch (IOException e) {
+                // the entries will be replayed
+            }
+            appliedSeq = seq;
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+        readSegment = cursor.segment();
+        readPosition = cursor.position();
+        while (oldest != readSegment) {
+            delete(oldest);
+            oldest = oldest.next;
+        }
+    }
+
+    private void roll() {
+        Segment segment = newSegment(nextSeq);
+        writer.next = segment;
+        if (!sync) {
+            writer.buffer.force();
+        }
+        writer = segment;
+    }
+
+    private Segment newSegment(long firstSeq) {
+        Path path = dir.resolve(format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            throw new UncheckedIOException(format("Journal error: %s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * The last complete entry is the one before the first empty or corrupted one.
+     */
+    private static Segment recover(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            ByteBuffer buffer = segment.reader;
+            int position = 0;
+            while (buffer.limit() - position >= ENTRY_OVERHEAD) {
+                int length = buffer.getInt(position);
+                if (length < ENTRY_OVERHEAD || length > buffer.limit() - position
+                        || checksum(buffer, position + Integer.BYTES, position + length - Integer.BYTES)
+                            != buffer.getInt(position + length - Integer.BYTES)) {
+                    break;
+                }
+                segment.lastSeq = buffer.getLong(position + Integer.BYTES);
+                position += length;
+            }
+            segment.limit = position;
+            return segment;
+        }
+    }
+
+    private List<Path> segmentPaths() throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    /**
+     * The id is kept for the life of the directory, so it identifies the journal across restarts.
+     */
+    private String readId() throws IOException {
+        Path path = dir.resolve(ID);
+        if (!Files.exists(path)) {
+            Path temp = dir.resolve(ID + ".tmp");
+            Files.writeString(temp, UUID.randomUUID().toString());
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return Files.readString(path).trim();
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path path = dir.resolve(CHECKPOINT);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(path)).getLong();
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        Path temp = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, seq));
+            if (sync) {
+                channel.force(false);
+            }
+        }
+        Files.move(temp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // replayed entries of a leftover segment are skipped by sequence number
+        }
+    }
+
+    /**
+     * The length is written last, so a partially written entry is never read.
+     *
+     * @return End position of the entry, or -1 if the entry does not fit.
+     */
+    private static int encode(MappedByteBuffer target, int start, long seq, String queryName, List<Object> queryParams) {
+        ByteBuffer buffer = target.duplicate();
+        try {
+            buffer.position(start + Integer.BYTES);
+            buffer.putLong(seq);
+            ValueCodec.putBytes(buffer, queryName.getBytes(StandardCharsets.UTF_8));
+            int size = queryParams != null ? queryParams.size() : 0;
+            buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+                putParam(buffer, queryParams.get(i));
+            }
+            int checksumPosition = buffer.position();
+            buffer.putInt(checksum(buffer, start + Integer.BYTES, checksumPosition));
+            int end = buffer.position();
+            buffer.putInt(start, end - start);
+            return end;
+        } catch (BufferOverflowException e) {
+            return -1;
+        }
+    }
+
+    private static Entry decode(ByteBuffer source, int start, int end, long seq) {
+        ByteBuffer buffer = source.duplicate().limit(end).position(start);
+        try {
+            String queryName = new String(ValueCodec.getBytes(buffer), StandardCharsets.UTF_8);
+            int size = buffer.getInt();
+            List<Object> queryParams = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                queryParams.add(ValueCodec.get(buffer));
+            }
+            return new Entry(seq, queryName, queryParams);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IllegalStateException(format("Journal entry %d is corrupted", seq));
+        }
+    }
+
+    private static void putParam(ByteBuffer buffer, Object param) {
+        if (param != null && !(param instanceof ByteBuffer) && !PARAM_TYPES.contains(param.getClass())) {
+            throw new IllegalArgumentException("Unsupported data type for journal parameter");
+        }
+        ValueCodec.put(buffer, param);
+    }
+
+    private static int checksum(ByteBuffer buffer, int start, int end) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(end).position(start));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Applies journal entries to the database.
+     */
+    @FunctionalInterface
+    interface Applier {
+        /**
+         * @param journalId Journal id.
+         * @param entries Entries in sequence order.
+         * @return Number of leading entries that were applied or dropped, which is retried from the next one.
+         */
+        int apply(String journalId, List<Entry> entries);
+    }
+
+    /**
+     * @param seq Sequence number.
+     * @param queryName Query name.
+     * @param queryParams Query parameters.
+     */
+    record Entry(long seq, String queryName, List<Object> queryParams) { }
+
+    private record Cursor(Segment segment, int position) { }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer reader;
+        // end of the last complete entry, written by the appender and read by the applier
+        private volatile int limit;
+        private volatile Segment next;
+        private long lastSeq;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.reader = buffer.duplicate();
+        }
+    }
+}
@@ -4,29 +4,66 @@
  */
 package it.fvaleri.qstorage;
 
+import org.h2.jdbcx.JdbcDataSource;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
-
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static java.util.UUID.randomUUID;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class QueryableStorageIT {
     static Connection conn;
+    static JdbcDataSource dataSource;
     static AtomicLong keys;
 
     @BeforeAll
@@ -35,6 +72,8 @@ public class QueryableStorageIT {
             "INIT=DROP TABLE IF EXISTS NOTES\\;" +
             "CREATE TABLE NOTES(NO_ID BIGINT PRIMARY KEY, NO_TEXT VARCHAR)";
         conn = DriverManager.getConnection(url);
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:test");
         keys = new AtomicLong(0);
     }
 
@@ -163,6 +202,21 @@ public class QueryableStorageIT {
         assertTrue(e2.getMessage().contains("Init error"));
     }
 
+    @Test
+    void shouldFailWithInvalidQueryOnFirstUseWhenLazy() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+        queries.put("notes.insert.invalid", "INSERT INTO FOO (ID, NAME) VALUES (?, ?)");
+
+        StorageConfig config = new StorageConfig().lazyPrepare(true).statementCacheSize(1);
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            assertTrue(storage.read("notes.select", List.of(String.class), List.of(-1L)).isEmpty());
+            Exception e = assertThrows(RuntimeException.class, () -> storage.write("notes.insert.invalid", List.of(1L, "foo")));
+            assertTrue(e.getMessage().contains("Query notes.insert.invalid failed"));
+            assertTrue(storage.read("notes.select", List.of(String.class), List.of(-1L)).isEmpty());
+        }
+    }
+
     @Test
     void shouldExecuteBatchWrites() throws Exception {
         int numOfBatches = 2;
@@ -185,4 +239,779 @@ public class QueryableStorageIT {
             }
         }
     }
+
+    @Test
+    void shouldStreamLargeResult() throws Exception {
+        int numOfRows = 1_000;
+        long firstKey = keys.get() + 1;
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.range", "SELECT NO_ID, NO_TEXT FROM NOTES WHERE NO_ID >= ? ORDER BY NO_ID");
+
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            for (int i = 0; i < numOfRows; i++) {
+                storage.write("notes.insert", List.of(keys.incrementAndGet(), randomUUID().toString()));
+            }
+            try (Stream<QueryableStorage.Row> rows = storage.stream("notes.select.range",
+                    List.of(Long.class, String.class), List.of(firstKey), 100)) {
+                assertEquals(numOfRows, rows.filter(row -> row.columns().get(1) != null).count());
+            }
+        }
+    }
+
+    @Test
+    void shouldExecuteConcurrentOperations() throws Exception {
+        int numOfThreads = 16;
+        int numOfWrites = 50;
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numOfThreads);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, new StorageConfig().poolSize(4))) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < numOfThreads; i++) {
+                results.add(executor.submit(() -> {
+                    int found = 0;
+                    for (int j = 0; j < numOfWrites; j++) {
+                        long key = keys.incrementAndGet();
+                        String value = randomUUID().toString();
+                        storage.write("notes.insert", List.of(key, value));
+                        if (value.equals(storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0))) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(numOfWrites, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void shouldFanOutAsyncLookups() throws Exception {
+        int numOfLookups = 32;
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, new StorageConfig().poolSize(4))) {
+            List<Long> lookupKeys = new ArrayList<>();
+            List<CompletableFuture<Integer>> writes = new ArrayList<>();
+            for (int i = 0; i < numOfLookups; i++) {
+                long key = keys.incrementAndGet();
+                lookupKeys.add(key);
+                writes.add(storage.writeAsync("notes.insert", List.of(key, "value" + key)));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+
+            List<CompletableFuture<List<QueryableStorage.Row>>> reads = lookupKeys.stream()
+                .map(key -> storage.readAsync("notes.select", List.of(String.class), List.of(key)))
+                .collect(Collectors.toList());
+            for (int i = 0; i < numOfLookups; i++) {
+                assertEquals("value" + lookupKeys.get(i), reads.get(i).get().get(0).columns().get(0));
+            }
+        }
+    }
+
+    @Test
+    void shouldWritePartialBatchOnClose() throws Exception {
+        int batchSize = 100;
+        int numOfRows = 250;
+        long firstKey = keys.get() + 1;
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+
+        int written = 0;
+        QueryableStorage storage = QueryableStorage.create(dataSource, queries);
+        for (int i = 0; i < numOfRows; i++) {
+            written += storage.write("notes.insert", List.of(keys.incrementAndGet(), randomUUID().toString()), batchSize);
+        }
+        assertEquals(200, written);
+        storage.close();
+
+        Properties countQueries = new Properties();
+        countQueries.put("notes.count", "SELECT COUNT(*) FROM NOTES WHERE NO_ID >= ?");
+        try (QueryableStorage reader = QueryableStorage.create(conn, countQueries)) {
+            assertEquals((long) numOfRows, reader.read("notes.count", List.of(Long.class), List.of(firstKey)).get(0).columns().get(0));
+        }
+    }
+
+    @Test
+    void shouldReadColumnarResult() throws Exception {
+        int numOfRows = 2_000;
+        long firstKey = keys.get() + 1;
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.report", "SELECT NO_ID, CAST(NO_ID / 4.0 AS NUMERIC(20, 2)), " +
+            "DATEADD(DAY, NO_ID, DATE '2020-01-01'), NO_TEXT FROM NOTES WHERE NO_ID >= ? ORDER BY NO_ID");
+
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            for (int i = 0; i < numOfRows; i++) {
+                storage.write("notes.insert", List.of(keys.incrementAndGet(), randomUUID().toString()), 500);
+            }
+            ColumnarResult result = storage.readColumnar("notes.select.report",
+                List.of(Long.class, BigDecimal.class, LocalDate.class, String.class), List.of(firstKey));
+            assertEquals(numOfRows, result.rowCount());
+
+            long expectedSum = 0;
+            for (long key = firstKey; key < firstKey + numOfRows; key++) {
+                expectedSum += key;
+            }
+            assertEquals(expectedSum, result.sum(0));
+            assertEquals(2, result.scale(1));
+            assertEquals(BigDecimal.valueOf(expectedSum * 25, 2), BigDecimal.valueOf(result.sum(1), result.scale(1)));
+            assertEquals(LocalDate.of(2020, 1, 1).plusDays(firstKey), result.getDate(2, 0));
+            assertEquals(36, result.getString(3, numOfRows - 1).length());
+        }
+    }
+
+    @Test
+    void shouldReadRecords() throws Exception {
+        long key1 = keys.incrementAndGet();
+        long key2 = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.two", "SELECT NO_TEXT, NO_ID FROM NOTES WHERE NO_ID IN (?, ?) ORDER BY NO_ID");
+
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            storage.write("notes.insert", List.of(key1, "value1"));
+            storage.write("notes.insert", Arrays.asList(key2, null));
+            assertEquals(List.of(new Note(key1, "value1"), new Note(key2, null)),
+                storage.read("notes.select.two", Note.class, List.of(key1, key2)));
+        }
+    }
+
+    @Test
+    void shouldCacheReadsUntilWriteInvalidation() throws Exception {
+        long key = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+        queries.put("notes.select@cache", "true");
+        queries.put("notes.update", "UPDATE NOTES SET NO_TEXT = ? WHERE NO_ID = ?");
+
+        StorageConfig config = new StorageConfig().cacheSize(100);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config);
+             Statement stmt = conn.createStatement()) {
+            storage.write("notes.insert", List.of(key, "value1"));
+            assertEquals("value1", storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0));
+
+            // an out of band update is not visible until a write invalidates the entry
+            stmt.executeUpdate("UPDATE NOTES SET NO_TEXT = 'value2' WHERE NO_ID = " + key);
+            assertEquals("value1", storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0));
+
+            storage.write("notes.update", List.of("value3", key));
+            assertEquals("value3", storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0));
+        }
+    }
+
+    @Test
+    void shouldExposeMetricsThroughJmx() throws Exception {
+        long key = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("it.fvaleri.qstorage:type=QueryMetrics,storage=\"notes\",query=\"notes.select\"");
+        Properties otherQueries = (Properties) queries.clone();
+        StorageConfig config = new StorageConfig().jmxName("notes");
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            storage.write("notes.insert", List.of(key, "value"));
+            storage.read("notes.select", List.of(String.class), List.of(key));
+            storage.read("notes.select", List.of(String.class), List.of(key));
+
+            assertEquals(2L, server.getAttribute(name, "Calls"));
+            assertEquals(2L, server.getAttribute(name, "RowsRead"));
+            assertTrue((Long) server.getAttribute(name, "LatencyP99") <= (Long) server.getAttribute(name, "LatencyMax"));
+            assertEquals(1, storage.metrics().query("notes.insert").rowsWritten());
+
+            // names must be unique
+            Exception e = assertThrows(IllegalArgumentException.class,
+                () -> QueryableStorage.create(dataSource, otherQueries, config));
+            assertTrue(e.getMessage().startsWith("Invalid JMX name notes"));
+            assertTrue(server.isRegistered(name));
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    void shouldStreamLargeObjects() throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS DOCS (DO_ID BIGINT PRIMARY KEY, DO_DATA BLOB, DO_TEXT CLOB)");
+        }
+        long key1 = keys.incrementAndGet();
+        long key2 = keys.incrementAndGet();
+        long key3 = keys.incrementAndGet();
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        Path file = Files.createTempFile("qstorage-", ".bin");
+        Files.write(file, data);
+
+        Properties queries = new Properties();
+        queries.put("docs.insert", "INSERT INTO DOCS (DO_ID, DO_DATA, DO_TEXT) VALUES (?, ?, ?)");
+        queries.put("docs.select.data", "SELECT DO_DATA FROM DOCS WHERE DO_ID = ?");
+        queries.put("docs.select.text", "SELECT DO_TEXT FROM DOCS WHERE DO_ID = ?");
+        queries.put("docs.select", "SELECT DO_ID, DO_DATA FROM DOCS WHERE DO_ID IN (?, ?, ?) ORDER BY DO_ID");
+
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            assertEquals(1, storage.write("docs.insert", List.of(key1, file, new StringReader("text1"))));
+            assertEquals(1, storage.write("docs.insert",
+                List.of(key2, new ByteArrayInputStream(data), new StringReader("text2"))));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            assertEquals(1, storage.write("docs.insert", List.of(key3, direct, new StringReader("text3"))));
+            assertEquals(data.length, direct.remaining());
+
+            for (long key : List.of(key1, key2, key3)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                assertEquals(data.length, storage.readLob("docs.select.data", List.of(key), Channels.newChannel(output)));
+                assertTrue(Arrays.equals(data, output.toByteArray()));
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(5, storage.readLob("docs.select.text", List.of(key2), Channels.newChannel(output)));
+            assertEquals("text2", output.toString(StandardCharsets.UTF_8));
+
+            try (Stream<QueryableStorage.Row> rows = storage.stream("docs.select",
+                    List.of(Long.class, InputStream.class), List.of(key1, key2, key3))) {
+                rows.forEach(row -> {
+                    try (InputStream input = (InputStream) row.columns().get(1)) {
+                        assertTrue(Arrays.equals(data, input.readAllBytes()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            assertThrows(IllegalArgumentException.class, () ->
+                storage.read("docs.select", List.of(Long.class, InputStream.class), List.of(key1, key2, key3)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void shouldWriteWithReusableParams() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_ID, NO_TEXT FROM NOTES WHERE NO_ID BETWEEN ? AND ? ORDER BY NO_ID");
+
+        long firstKey = keys.get() + 1;
+        QueryParams params = new QueryParams();
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            for (int i = 0; i < 10; i++) {
+                long key = keys.incrementAndGet();
+                // batched params are copied, so the holder can be reused right away
+                storage.write("notes.insert", params.reset().param(key).param("value" + key), i < 5 ? 1 : 5);
+            }
+            List<Note> notes = storage.read("notes.select", Note.class, params.reset().param(firstKey).param(keys.get()));
+            assertEquals(10, notes.size());
+            for (Note note : notes) {
+                assertEquals("value" + note.noId(), note.noText());
+            }
+        }
+    }
+
+    @Test
+    void shouldWriteAllInParallelChunks() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.count", "SELECT COUNT(*) FROM NOTES WHERE NO_ID BETWEEN ? AND ?");
+
+        int numRows = 25_000;
+        long firstKey = keys.get() + 1;
+        long lastKey = keys.addAndGet(numRows);
+        // the second row of the third chunk duplicates the first one, so that chunk is rolled back
+        long duplicateKey = firstKey + 2_500;
+        Stream<List<Object>> rows = LongStream.rangeClosed(firstKey, lastKey)
+            .mapToObj(key -> List.of(key == duplicateKey + 1 ? duplicateKey : key, "value" + key));
+
+        BulkOptions options = new BulkOptions().batchSize(500).commitSize(1_250).parallelism(4);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, new StorageConfig().poolSize(4))) {
+            BulkResult result = storage.writeAll("notes.insert", rows, options);
+            assertEquals(20, result.chunks().size());
+            assertEquals(numRows, result.rows());
+            assertEquals(numRows - 1_250, result.written());
+            assertEquals(1, result.failures().size());
+            BulkResult.Chunk failed = result.failures().get(0);
+            assertEquals(2, failed.index());
+            assertEquals(2_500, failed.firstRow());
+            assertTrue(failed.error().getMessage().startsWith("Query notes.insert failed"));
+            assertEquals(numRows - 1_250L, storage.read("notes.count", List.of(Long.class),
+                List.of(firstKey, lastKey)).get(0).columns().get(0));
+            assertEquals(numRows - 1_250L, storage.metrics().query("notes.insert").rowsWritten());
+        }
+    }
+
+    @Test
+    void shouldWriteAllChunksInTransaction() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.count", "SELECT COUNT(*) FROM NOTES WHERE NO_ID BETWEEN ? AND ?");
+
+        long firstKey = keys.get() + 1;
+        long lastKey = keys.addAndGet(1_000);
+        BulkOptions options = new BulkOptions().batchSize(50).commitSize(100).parallelism(4);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, new StorageConfig().poolSize(4))) {
+            // parallel chunks would be committed on other connections
+            assertThrows(IllegalStateException.class, () -> storage.inTransaction(tx -> {
+                BulkResult result = tx.writeAll("notes.insert", LongStream.rangeClosed(firstKey, lastKey)
+                    .mapToObj(key -> List.of(key, "value" + key)), options);
+                assertEquals(1_000, result.written());
+                throw new IllegalStateException("rollback");
+            }));
+            assertEquals(0L, storage.read("notes.count", List.of(Long.class),
+                List.of(firstKey, lastKey)).get(0).columns().get(0));
+
+            BulkResult result = storage.inTransaction(tx -> tx.writeAll("notes.insert", LongStream.rangeClosed(firstKey, lastKey)
+                .mapToObj(key -> List.of(key, "value" + key)), options));
+            assertEquals(10, result.chunks().size());
+            assertEquals(1_000L, storage.read("notes.count", List.of(Long.class),
+                List.of(firstKey, lastKey)).get(0).columns().get(0));
+        }
+    }
+
+    @Test
+    void shouldRollbackTransactionAndGroupCommit() throws Exception {
+        long key1 = keys.incrementAndGet();
+        long key2 = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        StorageConfig config = new StorageConfig().groupCommitWindow(Duration.ofMillis(50));
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            assertThrows(RuntimeException.class, () -> storage.inTransaction(tx -> {
+                tx.write("notes.insert", List.of(key1, "value1"));
+                assertEquals(1, tx.read("notes.select", List.of(String.class), List.of(key1)).size());
+                return tx.write("notes.insert", List.of(key1, "value1"));
+            }));
+            assertTrue(storage.read("notes.select", List.of(String.class), List.of(key1)).isEmpty());
+
+            int written = storage.inTransaction(tx ->
+                tx.write("notes.insert", List.of(key1, "value1")) + tx.write("notes.insert", List.of(key2, "value2")));
+            assertEquals(2, written);
+            assertEquals(1, storage.read("notes.select", List.of(String.class), List.of(key2)).size());
+
+            // the duplicate fails alone, while the other writes of its group are committed
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            long firstKey = keys.get() + 1;
+            for (int i = 0; i < 20; i++) {
+                futures.add(storage.writeAsync("notes.insert", List.of(keys.incrementAndGet(), "value")));
+            }
+            CompletableFuture<Integer> duplicate = storage.writeAsync("notes.insert", List.of(firstKey, "value"));
+            for (CompletableFuture<Integer> future : futures) {
+                assertEquals(1, future.get());
+            }
+            assertThrows(ExecutionException.class, duplicate::get);
+            // one duplicate in the rolled back transaction and one in the group
+            assertEquals(2, storage.metrics().query("notes.insert").errors());
+        }
+    }
+
+    @Test
+    void shouldCommitOrDiscardBatchedWritesWithTransaction() throws Exception {
+        long key1 = keys.incrementAndGet();
+        long key2 = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        StorageConfig config = new StorageConfig().batchLinger(Duration.ofMillis(10));
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            assertThrows(IllegalStateException.class, () -> storage.inTransaction(tx -> {
+                assertEquals(0, tx.write("notes.insert", List.of(key1, "value1"), 10));
+                throw new IllegalStateException("rollback");
+            }));
+            Thread.sleep(50);
+            storage.flush();
+            assertTrue(storage.read("notes.select", List.of(String.class), List.of(key1)).isEmpty());
+
+            int written = storage.inTransaction(tx ->
+                tx.write("notes.insert", List.of(key1, "value1"), 10) + tx.write("notes.insert", List.of(key2, "value2"), 10));
+            assertEquals(0, written);
+            assertEquals(1, storage.read("notes.select", List.of(String.class), List.of(key1)).size());
+            assertEquals(1, storage.read("notes.select", List.of(String.class), List.of(key2)).size());
+        }
+    }
+
+    @Test
+    void shouldReadManyKeysInFewStatements() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            List<Long> lookupKeys = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                long key = keys.incrementAndGet();
+                storage.write("notes.insert", List.of(key, "value" + key));
+                lookupKeys.add(key);
+            }
+            long missingKey = -1L;
+            lookupKeys.add(missingKey);
+
+            Map<Object, List<QueryableStorage.Row>> rows =
+                storage.readMany("notes.select", List.of(String.class), lookupKeys);
+            assertEquals(lookupKeys, new ArrayList<>(rows.keySet()));
+            for (long key : lookupKeys.subList(0, 200)) {
+                assertEquals(1, rows.get(key).size());
+                assertEquals("value" + key, rows.get(key).get(0).columns().get(0));
+            }
+            assertTrue(rows.get(missingKey).isEmpty());
+            // one full IN list of 128 keys and one of 128 padded slots for the remaining 73 keys
+            assertEquals(2, storage.metrics().query("notes.select").calls());
+            assertEquals(200, storage.metrics().query("notes.select").rowsRead());
+        }
+    }
+
+    @Test
+    void shouldScanAndResumeByKeyset() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.page", "SELECT NO_ID, NO_TEXT FROM NOTES WHERE NO_ID > ? ORDER BY NO_ID LIMIT ?");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            long afterKey = keys.get();
+            for (int i = 0; i < 25; i++) {
+                long key = keys.incrementAndGet();
+                storage.write("notes.insert", List.of(key, "value" + key));
+            }
+
+            Iterator<QueryableStorage.Page> pages = storage.readPages("notes.select.page",
+                List.of(Long.class, String.class), afterKey, 10);
+            QueryableStorage.Page first = pages.next();
+            assertEquals(10, first.rows().size());
+            assertEquals(afterKey + 10, first.lastKey());
+
+            // resume the scan from the last processed page
+            List<Long> resumed = new ArrayList<>();
+            storage.readPages("notes.select.page", List.of(Long.class, String.class), first.lastKey(), 10)
+                .forEachRemaining(page -> page.rows().forEach(row -> resumed.add((Long) row.columns().get(0))));
+            assertEquals(LongStream.rangeClosed(afterKey + 11, afterKey + 25).boxed().collect(Collectors.toList()), resumed);
+            assertEquals(3, storage.metrics().query("notes.select.page").calls());
+        }
+    }
+
+    @Test
+    void shouldReadRangeInParallelPartitions() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.range", "SELECT NO_ID FROM NOTES WHERE NO_ID >= ? AND NO_ID < ? ORDER BY NO_ID");
+
+        StorageConfig config = new StorageConfig().poolSize(4);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            long fromKey = keys.get() + 1;
+            for (int i = 0; i < 103; i++) {
+                storage.write("notes.insert", List.of(keys.incrementAndGet(), "value"));
+            }
+            long toKey = keys.get() + 1;
+
+            List<QueryableStorage.Row> rows = storage.readParallel("notes.select.range", List.of(Long.class), fromKey, toKey, 8);
+            assertEquals(LongStream.range(fromKey, toKey).boxed().collect(Collectors.toList()),
+                rows.stream().map(row -> row.columns().get(0)).collect(Collectors.toList()));
+            assertEquals(102, rows.get(102).index());
+            assertEquals(4, storage.metrics().query("notes.select.range").calls());
+
+            List<QueryableStorage.Row> sequential = storage.inTransaction(tx ->
+                tx.readParallel("notes.select.range", List.of(Long.class), fromKey, toKey, 8));
+            assertEquals(rows, sequential);
+        }
+    }
+
+    @Test
+    void shouldSplitReadsAndWritesAcrossNodes() throws Exception {
+        List<DataSource> nodes = new ArrayList<>();
+        for (String name : List.of("primary", "replica1", "replica2")) {
+            String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+            try (Connection nodeConn = DriverManager.getConnection(url); Statement stmt = nodeConn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS NODE(NO_NAME VARCHAR)");
+                stmt.execute("DELETE FROM NODE");
+                stmt.execute("INSERT INTO NODE VALUES ('" + name + "')");
+            }
+            JdbcDataSource nodeDataSource = new JdbcDataSource();
+            nodeDataSource.setURL(url);
+            nodes.add(nodeDataSource);
+        }
+
+        Properties queries = new Properties();
+        queries.put("node.select", "SELECT NO_NAME FROM NODE");
+        queries.put("node.insert", "INSERT INTO NODE VALUES (?)");
+
+        StorageConfig config = new StorageConfig().poolSize(2)
+            .readRouting(StorageConfig.ReadRouting.LEAST_OUTSTANDING).readYourWritesWindow(Duration.ofMillis(200));
+        try (QueryableStorage storage = QueryableStorage.create(nodes.get(0), nodes.subList(1, 3), queries, config)) {
+            // a replica busy with an open stream is skipped
+            try (Stream<QueryableStorage.Row> open = storage.stream("node.select", List.of(String.class), null)) {
+                String busy = (String) open.iterator().next().columns().get(0);
+                for (int i = 0; i < 3; i++) {
+                    String node = (String) storage.read("node.select", List.of(String.class)).get(0).columns().get(0);
+                    assertTrue(node.startsWith("replica"));
+                    assertFalse(node.equals(busy));
+                }
+            }
+
+            assertEquals(1, storage.write("node.insert", List.of("written")));
+            assertEquals(2, storage.read("node.select", List.of(String.class)).size());
+            Thread.sleep(300);
+            assertEquals(1, storage.read("node.select", List.of(String.class)).size());
+        }
+    }
+
+    @Test
+    void shouldApplyJournaledWritesInBatches(@TempDir Path dir) throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.count", "SELECT COUNT(*) FROM NOTES WHERE NO_ID > ? AND NO_ID <= ?");
+
+        Path journalDir = dir.resolve("journal");
+        Path backupDir = Files.createDirectories(dir.resolve("backup"));
+        StorageConfig config = new StorageConfig().journalDir(journalDir).journalSegmentSize(64 * 1024);
+        long afterKey = keys.get();
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, (Properties) queries.clone(), config)) {
+            for (int i = 0; i < 5_000; i++) {
+                assertEquals(0, storage.write("notes.insert", List.of(keys.incrementAndGet(), "value" + i)));
+            }
+            storage.flush();
+            assertEquals(5_000L, storage.read("notes.count", List.of(Long.class), List.of(afterKey, keys.get()))
+                .get(0).columns().get(0));
+            StorageMetrics.QueryStats stats = storage.metrics().query("notes.insert");
+            assertEquals(5_000, stats.rowsWritten());
+            assertTrue(stats.batches() < 5_000);
+            try (Stream<Path> files = Files.list(journalDir)) {
+                for (Path file : files.filter(file -> file.toString().endsWith(".log")).toList()) {
+                    Files.copy(file, backupDir.resolve(file.getFileName()));
+                }
+            }
+        }
+
+        // a crash after the commit and before the local checkpoint
+        try (Stream<Path> files = Files.list(backupDir)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, journalDir.resolve(file.getFileName()));
+            }
+        }
+        Files.write(journalDir.resolve("journal.checkpoint"), new byte[Long.BYTES]);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            storage.flush();
+            assertEquals(5_000L, storage.read("notes.count", List.of(Long.class), List.of(afterKey, keys.get()))
+                .get(0).columns().get(0));
+            assertEquals(0, storage.metrics().query("notes.insert").errors());
+        }
+    }
+
+    @Test
+    void shouldApplyJournaledWritesInOrder(@TempDir Path dir) throws Exception {
+        long key = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.update", "UPDATE NOTES SET NO_TEXT = ? WHERE NO_ID = ?");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        StorageConfig config = new StorageConfig().journalDir(dir).batchLinger(Duration.ofMillis(10));
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            storage.write("notes.insert", List.of(key, "value1"));
+            // bulk writes wait for the journal, while batched writes are journaled
+            assertEquals(1, storage.writeAll("notes.update", Stream.of(List.of("value2", key))).written());
+            assertEquals(0, storage.write("notes.update", List.of("value3", key), 10));
+            storage.write("notes.update", List.of("value4", key));
+            storage.flush();
+            assertEquals("value4", storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0));
+        }
+    }
+
+    @Test
+    void shouldReturnGeneratedKeys() throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS EVENTS(EV_ID BIGINT AUTO_INCREMENT PRIMARY KEY, EV_NAME VARCHAR)");
+        }
+        Properties queries = new Properties();
+        queries.put("events.insert", "INSERT INTO EVENTS (EV_NAME) VALUES (?)");
+        queries.put("events.select", "SELECT EV_NAME FROM EVENTS WHERE EV_ID = ?");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            List<List<Object>> rows = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                rows.add(List.of("event" + i));
+            }
+            List<Long> generated = storage.writeBatchReturningKeys("events.insert", rows, Long.class);
+            assertEquals(100, generated.size());
+            for (int i = 0; i < rows.size(); i += 33) {
+                assertEquals("event" + i, storage.read("events.select", List.of(String.class),
+                    List.of(generated.get(i))).get(0).columns().get(0));
+            }
+
+            Long key = storage.writeReturningKey("events.insert", List.of("single"), Long.class);
+            assertEquals(generated.get(99) + 1, key);
+        }
+    }
+
+    @Test
+    void shouldReadSpilledResults() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select.range", "SELECT NO_ID, NO_TEXT FROM NOTES WHERE NO_ID > ? AND NO_ID <= ? ORDER BY NO_ID");
+
+        long afterKey = keys.get();
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, (Properties) queries.clone())) {
+            storage.writeAll("notes.insert", LongStream.range(0, 20_000)
+                .mapToObj(i -> List.of(keys.incrementAndGet(), randomUUID().toString())));
+        }
+        List<Object> range = List.of(afterKey, keys.get());
+        List<Class<?>> columnTypes = List.of(Long.class, String.class);
+
+        List<QueryableStorage.Row> expected;
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, (Properties) queries.clone())) {
+            expected = storage.read("notes.select.range", columnTypes, range);
+        }
+        StorageConfig config = new StorageConfig().readMemoryBudget(256 * 1024);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            List<QueryableStorage.Row> spilled = storage.read("notes.select.range", columnTypes, range);
+            assertEquals(20_000, spilled.size());
+            assertEquals(expected, spilled);
+        }
+    }
+
+    @Test
+    void shouldWriteAdaptiveBatches() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.count", "SELECT COUNT(*) FROM NOTES WHERE NO_ID > ?");
+
+        long afterKey = keys.get();
+        StorageConfig config = new StorageConfig().adaptiveBatchLatency(Duration.ofSeconds(1)).adaptiveBatchSize(8, 256);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                storage.write("notes.insert", List.of(keys.incrementAndGet(), randomUUID().toString()),
+                    QueryableStorage.ADAPTIVE_BATCH_SIZE);
+            }
+            storage.flush("notes.insert");
+            StorageMetrics.QueryStats stats = storage.metrics().query("notes.insert");
+            assertEquals(5_000, stats.rowsWritten());
+            assertTrue(stats.maxBatchSize() > 8, "max batch size " + stats.maxBatchSize());
+            assertTrue(stats.maxBatchSize() <= 256, "max batch size " + stats.maxBatchSize());
+            assertEquals(5_000L, storage.read("notes.count", List.of(Long.class), List.of(afterKey)).get(0).columns().get(0));
+        }
+    }
+
+    @Test
+    void shouldLogSlowQueriesWithExplainPlan() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        BlockingQueue<StorageMetrics.SlowQuery> slowQueries = new LinkedBlockingQueue<>();
+        StorageConfig config = new StorageConfig().slowQueryThreshold(Duration.ofNanos(1)).slowQuerySink(slowQueries::add);
+        long key = keys.incrementAndGet();
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, config)) {
+            storage.read("notes.select", List.of(String.class), List.of(key));
+            StorageMetrics.SlowQuery entry = slowQueries.poll(10, TimeUnit.SECONDS);
+            assertEquals("notes.select", entry.queryName());
+            assertEquals(List.of(key), entry.queryParams());
+            assertEquals(0, entry.rows());
+            assertFalse(entry.sampled());
+            assertTrue(entry.plan().contains("PRIMARY_KEY"), entry.plan());
+
+            storage.write("notes.insert", List.of(key, "value"));
+            slowQueries.poll(10, TimeUnit.SECONDS);
+            storage.readMany("notes.select", List.of(String.class), List.of(key, key + 1));
+            entry = slowQueries.poll(10, TimeUnit.SECONDS);
+            assertEquals("notes.select", entry.queryName());
+            assertEquals(List.of(key), entry.queryParams());
+            assertEquals(1, entry.rows());
+        }
+    }
+
+    @Test
+    void shouldShedLoadOfSaturatedQuery() throws Exception {
+        Properties queries = new Properties();
+        queries.put("notes.report", "SELECT NO_ID FROM NOTES");
+        queries.put("notes.report@concurrency", "2");
+        queries.put("notes.report@queue", "0");
+        queries.put("notes.report@timeout", "30");
+        queries.put("notes.select", "SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?");
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            storage.write("notes.insert", List.of(keys.incrementAndGet(), randomUUID().toString()));
+            try (Stream<QueryableStorage.Row> first = storage.stream("notes.report", List.of(Long.class), null, 1);
+                 Stream<QueryableStorage.Row> second = storage.stream("notes.report", List.of(Long.class), null, 1)) {
+                assertThrows(RejectedExecutionException.class, () -> storage.read("notes.report", List.of(Long.class)));
+                CompletableFuture<List<QueryableStorage.Row>> other = storage.readAsync("notes.select", List.of(String.class), List.of(-1L));
+                assertTrue(other.get(10, TimeUnit.SECONDS).isEmpty());
+            }
+            assertFalse(storage.read("notes.report", List.of(Long.class)).isEmpty());
+            assertEquals(1, storage.metrics().query("notes.report").rejections());
+        }
+    }
+
+    @Test
+    void shouldReloadCatalogWithoutBlockingInFlightQueries(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("queries.properties");
+        Files.writeString(file, "notes.insert = INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)\n"
+            + "notes.select = SELECT NO_TEXT FROM NOTES WHERE NO_ID = ?\n");
+        Properties queries = new Properties();
+        try (InputStream input = Files.newInputStream(file)) {
+            queries.load(input);
+        }
+
+        long key = keys.incrementAndGet();
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries);
+             CatalogWatcher watcher = CatalogWatcher.watch(storage, file)) {
+            storage.write("notes.insert", List.of(key, "foo"));
+            try (Stream<QueryableStorage.Row> rows = storage.stream("notes.select", List.of(String.class), List.of(key), 1)) {
+                Properties reloaded = new Properties();
+                reloaded.put("notes.select", "SELECT UPPER(NO_TEXT) FROM NOTES WHERE NO_ID = ?");
+                storage.reload(reloaded);
+                assertEquals(List.of("foo"), rows.map(row -> row.columns().get(0)).collect(Collectors.toList()));
+            }
+            assertEquals("FOO", storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0));
+            assertThrows(IllegalArgumentException.class, () -> storage.write("notes.insert", List.of(key, "bar")));
+
+            Files.writeString(file, "notes.select = SELECT LOWER(NO_TEXT) || '!' FROM NOTES WHERE NO_ID = ?\n");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            Object value;
+            do {
+                Thread.sleep(50);
+                value = storage.read("notes.select", List.of(String.class), List.of(key)).get(0).columns().get(0);
+            } while (!"foo!".equals(value) && System.nanoTime() < deadline);
+            assertEquals("foo!", value);
+        }
+    }
+
+    @Test
+    void shouldMapRecordsOfReloadedQuery() throws Exception {
+        long key = keys.incrementAndGet();
+
+        Properties queries = new Properties();
+        queries.put("notes.insert", "INSERT INTO NOTES (NO_ID, NO_TEXT) VALUES (?, ?)");
+        queries.put("notes.select", "SELECT NO_ID, NO_TEXT FROM NOTES WHERE NO_ID = ?");
+
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries)) {
+            storage.write("notes.insert", List.of(key, "value"));
+            assertEquals(List.of(new Note(key, "value")), storage.read("notes.select", Note.class, List.of(key)));
+
+            Properties reloaded = new Properties();
+            reloaded.putAll(queries);
+            reloaded.put("notes.select", "SELECT UPPER(NO_TEXT) AS NO_TEXT, NO_ID FROM NOTES WHERE NO_ID = ?");
+            storage.reload(reloaded);
+            assertEquals(List.of(new Note(key, "VALUE")), storage.read("notes.select", Note.class, List.of(key)));
+        }
+    }
+
+    record Note(long noId, String noText) { }
 }
@@ -5,22 +5,61 @@
 package it.fvaleri.qstorage;
 
 import it.fvaleri.qstorage.QueryableStorage.Row;
+import it.fvaleri.qstorage.StorageMetrics.SlowQuery;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class QueryableStorageTest {
@@ -106,7 +145,7 @@ public class QueryableStorageTest {
         Properties queries = new Properties();
         queries.put("read", "valid SQL query");
 
-        Exception e1 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create(null, queries));
+        Exception e1 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create((Connection) null, queries));
         assertEquals("Invalid connection", e1.getMessage());
 
         when(conn.isClosed()).thenReturn(true);
@@ -204,4 +243,1023 @@ public class QueryableStorageTest {
             assertEquals(2, storage.write("write", List.of("foo", "bar"), 2));
         }
     }
+
+    @Test
+    void shouldStreamRowsAndCloseResultSet() throws Exception {
+        List<String> data = List.of("v1", "v2", "v3");
+
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getObject(anyInt(), any(Class.class))).thenReturn(data.get(0)).thenReturn(data.get(1)).thenReturn(data.get(2));
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            try (Stream<Row> rows = storage.stream("read", List.of(String.class), null, 2)) {
+                verify(resultSet, never()).next();
+                assertEquals(data, rows.map(row -> (String) row.columns().get(0)).collect(Collectors.toList()));
+            }
+            verify(prepStmt).setFetchSize(2);
+            verify(resultSet).close();
+        }
+    }
+
+    @Test
+    void shouldBoundConnectionsWhenUsedConcurrently() throws Exception {
+        int poolSize = 2;
+        int numOfThreads = 8;
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numOfThreads);
+        try (QueryableStorage storage = QueryableStorage.create(dataSource, queries, new StorageConfig().poolSize(poolSize))) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < numOfThreads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (int j = 0; j < 100; j++) {
+                        count += storage.write("write", List.of("foo", "bar"));
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(100, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        verify(dataSource, atMost(poolSize)).getConnection();
+    }
+
+    @Test
+    void shouldFailWhenDataSourceOrConfigIsNull() {
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+
+        Exception e1 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create((DataSource) null, queries));
+        assertEquals("Invalid data source", e1.getMessage());
+
+        Exception e2 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create(mock(DataSource.class), queries, null));
+        assertEquals("Invalid config", e2.getMessage());
+    }
+
+    @Test
+    void shouldExecuteAsyncQueries() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true).thenReturn(false);
+        when(resultSet.getObject(anyInt(), any(Class.class))).thenReturn("v1");
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            CompletableFuture<Integer> written = storage.writeAsync("write", List.of("foo", "bar"));
+            assertEquals(1, written.get());
+            CompletableFuture<List<Row>> rows = storage.readAsync("read", List.of(String.class), List.of("k1"));
+            assertEquals("v1", rows.get().get(0).columns().get(0));
+
+            CompletableFuture<List<Row>> failed = storage.readAsync("foo", List.of(String.class), null);
+            Exception e = assertThrows(ExecutionException.class, failed::get);
+            assertEquals("Query foo not found", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void shouldFlushPartialBatches() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeBatch()).thenReturn(new int[]{1, 1}).thenReturn(new int[]{1});
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        QueryableStorage storage = QueryableStorage.create(conn, queries);
+        assertEquals(0, storage.write("write", List.of("foo", "bar"), 10));
+        assertEquals(0, storage.write("write", List.of("foo", "bar"), 10));
+        assertEquals(2, storage.flush("write"));
+        assertEquals(0, storage.flush());
+
+        assertEquals(0, storage.write("write", List.of("foo", "bar"), 10));
+        storage.close();
+        verify(prepStmt, times(3)).addBatch();
+        verify(prepStmt, times(2)).executeBatch();
+    }
+
+    @Test
+    void shouldFlushBatchWhenLingerExpires() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeBatch()).thenReturn(new int[]{1});
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        StorageConfig config = new StorageConfig().batchLinger(Duration.ofMillis(50));
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            assertEquals(0, storage.write("write", List.of("foo", "bar"), 1_000));
+            verify(prepStmt, timeout(5_000)).executeBatch();
+            assertEquals(0, storage.flush());
+        }
+
+        // close waits for a running linger flush, which has already taken its batch
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        when(prepStmt.executeBatch()).thenAnswer(invocation -> {
+            started.countDown();
+            try {
+                Thread.sleep(200);
+                interrupted.complete(false);
+            } catch (InterruptedException e) {
+                interrupted.complete(true);
+            }
+            return new int[]{1};
+        });
+        Properties closingQueries = new Properties();
+        closingQueries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, closingQueries, config)) {
+            assertEquals(0, storage.write("write", List.of("foo", "bar"), 1_000));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+        assertFalse(interrupted.getNow(true));
+    }
+
+    @Test
+    void shouldReadColumnarResult() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(metaData.getScale(2)).thenReturn(2);
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getLong(1)).thenReturn(7L).thenReturn(0L);
+        when(resultSet.wasNull()).thenReturn(false).thenReturn(true);
+        when(resultSet.getBigDecimal(2)).thenReturn(new BigDecimal("10.5")).thenReturn(new BigDecimal("0.25"));
+        when(resultSet.getObject(3, LocalDate.class)).thenReturn(LocalDate.of(2020, 1, 2)).thenReturn(null);
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            ColumnarResult result = storage.readColumnar("read", List.of(Long.class, BigDecimal.class, LocalDate.class), null);
+            assertEquals(2, result.rowCount());
+            assertEquals(7L, result.getLong(0, 0));
+            assertTrue(result.isNull(0, 1));
+            assertEquals(1075L, result.sum(1));
+            assertEquals(new BigDecimal("0.25"), result.getDecimal(1, 1));
+            assertEquals(LocalDate.of(2020, 1, 2).toEpochDay(), result.dateVector(2)[0]);
+            assertTrue(result.isNull(2, 1));
+
+            Exception e = assertThrows(IllegalArgumentException.class,
+                () -> storage.readColumnar("read", List.of(Object.class), null));
+            assertEquals("Unsupported column type java.lang.Object", e.getMessage());
+        }
+    }
+
+    @Test
+    void shouldReadWithRowMapper() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getString(1)).thenReturn("v1").thenReturn("v2");
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            assertEquals(List.of("v1", "v2"), storage.read("read", rs -> rs.getString(1), null));
+            verify(resultSet).close();
+
+            Exception e = assertThrows(IllegalArgumentException.class,
+                () -> storage.read("read", (QueryableStorage.RowMapper<String>) null, null));
+            assertEquals("Invalid row mapper", e.getMessage());
+        }
+    }
+
+    @Test
+    void shouldReadRecords() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(3);
+        when(metaData.getColumnLabel(1)).thenReturn("NO_TEXT");
+        when(metaData.getColumnLabel(2)).thenReturn("NO_ID");
+        when(metaData.getColumnLabel(3)).thenReturn("NO_AMOUNT");
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getString(1)).thenReturn("v1").thenReturn("v2");
+        when(resultSet.getLong(2)).thenReturn(1L).thenReturn(2L);
+        when(resultSet.getBigDecimal(3)).thenReturn(BigDecimal.TEN).thenReturn(null);
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            assertEquals(List.of(new Note(1, "v1", BigDecimal.TEN), new Note(2, "v2", null)),
+                storage.read("read", Note.class, null));
+        }
+    }
+
+    @Test
+    void shouldCacheReadsUntilWriteInvalidation() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+        when(resultSet.next()).thenReturn(true).thenReturn(false).thenReturn(true).thenReturn(false);
+        when(resultSet.getObject(anyInt(), any(Class.class))).thenReturn("v1").thenReturn("v2");
+
+        Properties queries = new Properties();
+        queries.put("users.select", "SELECT US_EMAIL FROM USERS WHERE US_USERID = ?");
+        queries.put("users.select@cache", "true");
+        queries.put("users.update", "UPDATE USERS SET US_EMAIL = ? WHERE US_USERID = ?");
+        queries.put("pagamento.update", "UPDATE PAGAMENTO SET PAG_CC = ? WHERE PAG_CODICE = ?");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, new StorageConfig().cacheSize(10))) {
+            assertEquals("v1", storage.read("users.select", List.of(String.class), List.of("k1")).get(0).columns().get(0));
+            assertEquals("v1", storage.read("users.select", List.of(String.class), List.of("k1")).get(0).columns().get(0));
+            verify(prepStmt, times(1)).executeQuery();
+
+            storage.write("pagamento.update", List.of("foo", 1L));
+            assertEquals("v1", storage.read("users.select", List.of(String.class), List.of("k1")).get(0).columns().get(0));
+            verify(prepStmt, times(1)).executeQuery();
+
+            storage.write("users.update", List.of("foo", "k1"));
+            assertEquals("v2", storage.read("users.select", List.of(String.class), List.of("k1")).get(0).columns().get(0));
+            verify(prepStmt, times(2)).executeQuery();
+        }
+    }
+
+    @Test
+    void shouldFailWithInvalidQueryAttribute() {
+        Connection conn = mock(Connection.class);
+
+        Properties queries1 = new Properties();
+        queries1.put("read", "valid SQL query");
+        queries1.put("read@timeout", "foo");
+        Exception e1 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create(conn, queries1));
+        assertEquals("Invalid query attribute read@timeout", e1.getMessage());
+
+        Properties queries2 = new Properties();
+        queries2.put("read", "valid SQL query");
+        queries2.put("write@cache", "true");
+        Exception e2 = assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create(conn, queries2));
+        assertEquals("Query write not found", e2.getMessage());
+    }
+
+    @Test
+    void shouldLoadQueryNamesWithAttributeSeparator() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        // only known attributes are parsed, so the other keys are query names
+        Properties queries = new Properties();
+        queries.put("users@eu.write", "valid SQL query");
+        queries.put("users@eu.write@timeout", "5");
+        queries.put("read@foo", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            assertEquals(1, storage.write("users@eu.write", List.of("foo")));
+            assertEquals(1, storage.write("read@foo", List.of("foo")));
+            verify(prepStmt).setQueryTimeout(5);
+            assertThrows(IllegalArgumentException.class, () -> storage.write("users", List.of("foo")));
+        }
+    }
+
+    @Test
+    void shouldPrepareLazilyAndEvictStatements() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt1 = mock(PreparedStatement.class);
+        PreparedStatement prepStmt2 = mock(PreparedStatement.class);
+        when(conn.prepareStatement("query1")).thenReturn(prepStmt1);
+        when(conn.prepareStatement("query2")).thenReturn(prepStmt2);
+        when(prepStmt1.executeUpdate()).thenReturn(1);
+        when(prepStmt2.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write1", "query1");
+        queries.put("write2", "query2");
+        StorageConfig config = new StorageConfig().lazyPrepare(true).statementCacheSize(1);
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            verify(conn, never()).prepareStatement(any());
+
+            assertEquals(1, storage.write("write1", List.of("foo")));
+            assertEquals(1, storage.write("write1", List.of("foo")));
+            verify(conn, times(1)).prepareStatement("query1");
+
+            assertEquals(1, storage.write("write2", List.of("foo")));
+            verify(prepStmt1).close();
+            verify(prepStmt2, never()).close();
+
+            assertEquals(1, storage.write("write1", List.of("foo")));
+            verify(conn, times(2)).prepareStatement("query1");
+            verify(prepStmt2).close();
+        }
+    }
+
+    @Test
+    void shouldRecordQueryMetrics() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(prepStmt.executeUpdate()).thenReturn(1).thenThrow(new SQLException("test"));
+        when(prepStmt.executeBatch()).thenReturn(new int[]{1, 1, 1});
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getObject(anyInt(), any(Class.class))).thenReturn("v1");
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            assertEquals(2, storage.read("read", List.of(String.class), null).size());
+            assertEquals(1, storage.write("write", List.of("foo")));
+            assertThrows(RuntimeException.class, () -> storage.write("write", List.of("foo")));
+            for (int i = 0; i < 3; i++) {
+                storage.write("write", List.of("foo"), 3);
+            }
+
+            StorageMetrics.QueryStats read = storage.metrics().query("read");
+            assertEquals(1, read.calls());
+            assertEquals(2, read.rowsRead());
+            assertEquals(1, read.latency().count());
+            assertTrue(read.latency().p50Micros() <= read.latency().maxMicros());
+
+            StorageMetrics.QueryStats write = storage.metrics().query("write");
+            assertEquals(1, write.calls());
+            assertEquals(1, write.errors());
+            assertEquals(4, write.rowsWritten());
+            assertEquals(1, write.batches());
+            assertEquals(3, write.maxBatchSize());
+            assertEquals(3.0, write.avgBatchSize());
+            assertEquals(List.of("read", "write"), List.copyOf(storage.metrics().queries().keySet()));
+            assertThrows(IllegalArgumentException.class, () -> storage.metrics().query("foo"));
+        }
+    }
+
+    @Test
+    void shouldComputeLatencyPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(i * 1_000L);
+        }
+        long[] percentiles = histogram.percentileMicros(50, 99, 100);
+        assertEquals(1000, histogram.count());
+        assertEquals(1000, histogram.maxMicros());
+        assertTrue(percentiles[0] >= 500 && percentiles[0] <= 500 * 1.125, "p50 " + percentiles[0]);
+        assertTrue(percentiles[1] >= 990 && percentiles[1] <= 1000, "p99 " + percentiles[1]);
+        assertEquals(1000, percentiles[2]);
+        for (long value : new long[]{0, 7, 8, 100, 12345, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= Math.min(value, 1L << 41) - 1, "value " + value);
+        }
+    }
+
+    @Test
+    void shouldBindStreamParams() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}).position(2);
+            InputStream input = new ByteArrayInputStream(new byte[0]);
+            Reader reader = new StringReader("text");
+            assertEquals(1, storage.write("write", List.of(buffer, input, reader)));
+            verify(prepStmt).setBinaryStream(eq(1), any(InputStream.class), eq(3));
+            verify(prepStmt).setBinaryStream(2, input);
+            verify(prepStmt).setCharacterStream(3, reader);
+            assertEquals(2, buffer.position());
+        }
+    }
+
+    @Test
+    void shouldBindParamsWithPrecompiledBinderAndHolder() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            LocalDate date = LocalDate.of(2018, 1, 1);
+            storage.write("write", List.of(1L, "foo", date));
+            // types changed after the binder was created
+            storage.write("write", Arrays.asList(2, null, date));
+            verify(prepStmt).setLong(1, 1L);
+            verify(prepStmt).setString(2, "foo");
+            verify(prepStmt).setInt(1, 2);
+            verify(prepStmt).setNull(2, Types.NULL);
+            verify(prepStmt, times(2)).setDate(3, Date.valueOf(date));
+
+            QueryParams params = new QueryParams(1);
+            storage.write("write", params.param(3L).param(4).param("bar"));
+            storage.write("write", params.reset().param(5L));
+            verify(prepStmt).setLong(1, 3L);
+            verify(prepStmt).setInt(2, 4);
+            verify(prepStmt).setString(3, "bar");
+            verify(prepStmt).setLong(1, 5L);
+            assertEquals(List.of(5L), params);
+        }
+    }
+
+    @Test
+    void shouldWriteAllInCommittedChunks() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(conn.getAutoCommit()).thenReturn(true);
+        when(prepStmt.executeBatch()).thenReturn(new int[]{1, 1})
+            .thenThrow(new SQLException("test")).thenReturn(new int[]{1, 1});
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            Stream<List<Object>> rows = Stream.of(1L, 2L, 3L, 4L, 5L, 6L).map(key -> List.of(key));
+            BulkResult result = storage.writeAll("write", rows, new BulkOptions().batchSize(2).commitSize(2));
+            assertEquals(3, result.chunks().size());
+            assertEquals(4, result.written());
+            assertEquals(1, result.failures().get(0).index());
+            assertEquals("Query write failed: test", result.failures().get(0).error().getMessage());
+            verify(prepStmt, times(6)).addBatch();
+            verify(conn, times(2)).commit();
+            verify(conn, times(1)).rollback();
+            verify(conn, times(3)).setAutoCommit(false);
+            verify(conn, times(3)).setAutoCommit(true);
+
+            when(prepStmt.executeBatch()).thenThrow(new SQLException("test"));
+            BulkResult failFast = storage.writeAll("write", Stream.of(List.of(1L), List.of(2L)),
+                new BulkOptions().commitSize(1).failFast(true));
+            assertEquals(1, failFast.chunks().size());
+            assertFalse(failFast.succeeded());
+        }
+    }
+
+    @Test
+    void shouldCommitOrRollbackTransaction() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(conn.getAutoCommit()).thenReturn(true);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            int rows = storage.inTransaction(tx -> tx.write("write", List.of("foo"))
+                + tx.inTransaction(nested -> nested.write("write", List.of("bar"))));
+            assertEquals(2, rows);
+            verify(conn, times(1)).setAutoCommit(false);
+            verify(conn, times(1)).commit();
+            verify(conn, times(1)).setAutoCommit(true);
+
+            Exception e = assertThrows(IllegalStateException.class, () -> storage.inTransaction(tx -> {
+                tx.write("write", List.of("foo"));
+                throw new IllegalStateException("test");
+            }));
+            assertEquals("test", e.getMessage());
+            verify(conn, times(1)).commit();
+            verify(conn, times(1)).rollback();
+            verify(conn, times(2)).setAutoCommit(true);
+        }
+    }
+
+    @Test
+    void shouldShareCommitAcrossConcurrentWrites() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(conn.getAutoCommit()).thenReturn(true);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        StorageConfig config = new StorageConfig().groupCommitWindow(Duration.ofMillis(200));
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(storage.writeAsync("write", List.of(i)));
+            }
+            for (CompletableFuture<Integer> future : futures) {
+                assertEquals(1, future.get());
+            }
+            verify(prepStmt, times(10)).executeUpdate();
+            verify(conn, atMost(2)).commit();
+        }
+
+        // writes accepted while closing are executed
+        List<CompletableFuture<Integer>> accepted = new CopyOnWriteArrayList<>();
+        Properties closingQueries = new Properties();
+        closingQueries.put("write", "valid SQL query");
+        QueryableStorage closing = QueryableStorage.create(conn, closingQueries, new StorageConfig().groupCommitWindow(Duration.ofMillis(1)));
+        Thread submitter = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    accepted.add(closing.writeAsync("write", List.of(i)));
+                }
+            } catch (RuntimeException e) {
+                // closed
+            }
+        });
+        submitter.start();
+        closing.close();
+        submitter.join();
+        for (CompletableFuture<Integer> future : accepted) {
+            assertEquals(1, future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void shouldReadManyWithExpandedInList() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(2);
+        // the key of the second row was not requested
+        when(resultSet.next()).thenReturn(true).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(resultSet.getObject(2, Long.class)).thenReturn(1L).thenReturn(5L).thenReturn(3L);
+        when(resultSet.getObject(1, String.class)).thenReturn("v1").thenReturn("v3");
+
+        Properties queries = new Properties();
+        queries.put("read", "SELECT V FROM T WHERE K = ? ORDER BY V");
+        queries.put("read.all", "SELECT V FROM T");
+        queries.put("read.first", "SELECT V FROM T WHERE K = ? ORDER BY V FETCH FIRST 1 ROWS ONLY");
+        StorageConfig config = new StorageConfig().lazyPrepare(true);
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            Map<Object, List<Row>> rows = storage.readMany("read", List.of(String.class), List.of(1L, 2L, 3L, 1L));
+            assertEquals(List.of(1L, 2L, 3L), new ArrayList<>(rows.keySet()));
+            assertEquals("v1", rows.get(1L).get(0).columns().get(0));
+            assertTrue(rows.get(2L).isEmpty());
+            assertEquals("v3", rows.get(3L).get(0).columns().get(0));
+            assertEquals(3, rows.size());
+            verify(conn).prepareStatement("SELECT V, K FROM T WHERE K IN (?, ?, ?, ?) ORDER BY V");
+            verify(prepStmt).setLong(4, 3L);
+            assertEquals(1, storage.metrics().query("read").calls());
+
+            assertThrows(IllegalArgumentException.class,
+                () -> storage.readMany("read.all", List.of(String.class), List.of(1L)));
+            // the limit would apply to all keys
+            assertEquals("Query read.first is not a point lookup", assertThrows(IllegalArgumentException.class,
+                () -> storage.readMany("read.first", List.of(String.class), List.of(1L))).getMessage());
+        }
+        assertEquals(1, MultiGet.bucketSize(1));
+        assertEquals(4, MultiGet.bucketSize(3));
+        assertEquals(MultiGet.MAX_BUCKET_SIZE, MultiGet.bucketSize(1000));
+    }
+
+    @Test
+    void shouldReadPagesByKeyset() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false, true, false);
+        when(resultSet.getObject(1, Long.class)).thenReturn(1L, 2L, 3L);
+
+        Properties queries = new Properties();
+        queries.put("read", "SELECT K FROM T WHERE K > ? ORDER BY K LIMIT ?");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            Iterator<QueryableStorage.Page> pages = storage.readPages("read", List.of(Long.class), 0L, 2);
+            assertTrue(pages.hasNext());
+            assertEquals(2L, pages.next().lastKey());
+            QueryableStorage.Page last = pages.next();
+            assertEquals(1, last.rows().size());
+            assertEquals(3L, last.lastKey());
+            assertFalse(pages.hasNext());
+            verify(prepStmt).setLong(1, 0L);
+            verify(prepStmt).setLong(1, 2L);
+            verify(prepStmt, times(2)).setInt(2, 2);
+            verify(prepStmt, times(2)).executeQuery();
+
+            assertThrows(IllegalArgumentException.class, () -> storage.readPages("read", List.of(Long.class), null, 2));
+            assertThrows(IllegalArgumentException.class, () -> storage.readPages("read", List.of(Long.class), 0L, 0));
+        }
+    }
+
+    @Test
+    void shouldReadRangeInPartitions() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(false);
+
+        Properties queries = new Properties();
+        queries.put("read", "SELECT K FROM T WHERE K >= ? AND K < ? ORDER BY K");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            // partitions are bounded by the single shared connection
+            assertTrue(storage.readParallel("read", List.of(Long.class), 0, 100, 4).isEmpty());
+            verify(prepStmt).setLong(1, 0L);
+            verify(prepStmt).setLong(2, 100L);
+
+            assertThrows(IllegalArgumentException.class,
+                () -> storage.readParallel("read", List.of(Long.class), 100, 100, 4));
+            assertThrows(IllegalArgumentException.class,
+                () -> storage.readParallel("read", List.of(Long.class), Long.MIN_VALUE, Long.MAX_VALUE, 4));
+            assertThrows(IllegalArgumentException.class,
+                () -> storage.readParallel("read", List.of(Long.class), 0, 100, 0));
+        }
+    }
+
+    @Test
+    void shouldRouteReadsToReplicasAndWritesToPrimary() throws Exception {
+        List<DataSource> dataSources = new ArrayList<>();
+        List<PreparedStatement> prepStmts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DataSource dataSource = mock(DataSource.class);
+            Connection conn = mock(Connection.class);
+            PreparedStatement prepStmt = mock(PreparedStatement.class);
+            ResultSet resultSet = mock(ResultSet.class);
+            when(dataSource.getConnection()).thenReturn(conn);
+            when(conn.prepareStatement(any())).thenReturn(prepStmt);
+            when(prepStmt.executeQuery()).thenReturn(resultSet);
+            when(prepStmt.executeUpdate()).thenReturn(1);
+            dataSources.add(dataSource);
+            prepStmts.add(prepStmt);
+        }
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        queries.put("write", "valid SQL query");
+        StorageConfig config = new StorageConfig().readYourWritesWindow(Duration.ofMinutes(1));
+        try (QueryableStorage storage = QueryableStorage.create(dataSources.get(0), dataSources.subList(1, 3), queries, config)) {
+            for (int i = 0; i < 4; i++) {
+                storage.read("read", List.of(String.class), List.of(i));
+            }
+            verify(prepStmts.get(0), never()).executeQuery();
+            verify(prepStmts.get(1), times(2)).executeQuery();
+            verify(prepStmts.get(2), times(2)).executeQuery();
+
+            // reads stick to the primary after a write
+            assertEquals(1, storage.write("write", List.of("foo")));
+            storage.read("read", List.of(String.class), List.of(0));
+            verify(prepStmts.get(0)).executeUpdate();
+            verify(prepStmts.get(0)).executeQuery();
+            assertEquals(5, storage.metrics().query("read").calls());
+        }
+
+        Exception e = assertThrows(IllegalArgumentException.class,
+            () -> QueryableStorage.create(dataSources.get(0), null, queries, new StorageConfig()));
+        assertEquals("Invalid replicas", e.getMessage());
+    }
+
+    @Test
+    void shouldReplayJournalAfterFailedApply(@TempDir Path dir) throws Exception {
+        Connection conn1 = mock(Connection.class);
+        PreparedStatement prepStmt1 = mock(PreparedStatement.class);
+        when(conn1.prepareStatement(any())).thenReturn(prepStmt1);
+        when(prepStmt1.executeBatch()).thenThrow(new SQLException("down"));
+        when(prepStmt1.executeUpdate()).thenThrow(new SQLException("down"));
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        StorageConfig config = new StorageConfig().journalDir(dir);
+        try (QueryableStorage storage = QueryableStorage.create(conn1, (Properties) queries.clone(), config)) {
+            assertEquals(0, storage.write("write", List.of("k1", 1L)));
+            assertEquals(0, storage.write("write", List.of("k2", 2L)));
+            Exception e = assertThrows(RuntimeException.class, storage::flush);
+            assertEquals("Journal apply failed: Query write failed: down", e.getMessage());
+        }
+        verify(conn1, never()).commit();
+
+        Connection conn2 = mock(Connection.class);
+        PreparedStatement prepStmt2 = mock(PreparedStatement.class);
+        when(conn2.prepareStatement(any())).thenReturn(prepStmt2);
+        when(prepStmt2.executeBatch()).thenReturn(new int[] {1, 1});
+        try (QueryableStorage storage = QueryableStorage.create(conn2, queries, config)) {
+            storage.flush();
+            verify(prepStmt2).setString(1, "k1");
+            verify(prepStmt2).setLong(2, 2L);
+            verify(prepStmt2, times(2)).addBatch();
+            verify(conn2).commit();
+            assertEquals(2, storage.metrics().query("write").rowsWritten());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".log")));
+        }
+    }
+
+    @Test
+    void shouldSkipCorruptedJournalEntry(@TempDir Path dir) throws Exception {
+        Connection conn1 = mock(Connection.class);
+        PreparedStatement prepStmt1 = mock(PreparedStatement.class);
+        when(conn1.prepareStatement(any())).thenReturn(prepStmt1);
+        when(prepStmt1.executeBatch()).thenThrow(new SQLException("down"));
+        when(prepStmt1.executeUpdate()).thenThrow(new SQLException("down"));
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        StorageConfig config = new StorageConfig().journalDir(dir);
+        try (QueryableStorage storage = QueryableStorage.create(conn1, (Properties) queries.clone(), config)) {
+            storage.write("write", List.of("k1", 1L));
+            storage.write("write", List.of("k2", 2L));
+            assertThrows(RuntimeException.class, storage::flush);
+        }
+
+        // an invalid type of the first parameter with a matching checksum
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(file -> file.toString().endsWith(".log")).sorted().findFirst().orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int length = buffer.getInt(0);
+        bytes[Integer.BYTES + Long.BYTES + Integer.BYTES + "write".length() + Integer.BYTES] = Byte.MAX_VALUE;
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, Integer.BYTES, length - 2 * Integer.BYTES);
+        buffer.putInt(length - Integer.BYTES, (int) crc.getValue());
+        Files.write(segment, bytes);
+
+        Connection conn2 = mock(Connection.class);
+        PreparedStatement prepStmt2 = mock(PreparedStatement.class);
+        when(conn2.prepareStatement(any())).thenReturn(prepStmt2);
+        when(prepStmt2.executeBatch()).thenReturn(new int[] {1});
+        try (QueryableStorage storage = QueryableStorage.create(conn2, queries, config)) {
+            storage.flush();
+            verify(prepStmt2, never()).setString(1, "k1");
+            verify(prepStmt2).setString(1, "k2");
+            assertEquals(1, storage.metrics().query("write").rowsWritten());
+        }
+    }
+
+    @Test
+    void shouldMapGeneratedKeysToBatchRows() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        PreparedStatement keysStmt = mock(PreparedStatement.class);
+        ResultSet keys = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(conn.prepareStatement(any(), eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(keysStmt);
+        when(keysStmt.executeBatch()).thenReturn(new int[] {1, 0, 1});
+        when(keysStmt.executeUpdate()).thenReturn(1);
+        when(keysStmt.getGeneratedKeys()).thenReturn(keys);
+        when(keys.next()).thenReturn(true, true, true);
+        when(keys.getObject(1, Long.class)).thenReturn(10L, 12L, 13L);
+
+        Properties queries = new Properties();
+        queries.put("insert", "valid SQL query");
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            List<Long> generated = storage.writeBatchReturningKeys("insert",
+                List.of(List.of("a"), List.of("b"), List.of("c")), Long.class);
+            assertEquals(Arrays.asList(10L, null, 12L), generated);
+            assertEquals(13L, storage.writeReturningKey("insert", List.of("d"), Long.class));
+            verify(keysStmt, times(3)).addBatch();
+            verify(prepStmt, never()).executeUpdate();
+            assertEquals(3, storage.metrics().query("insert").rowsWritten());
+        }
+    }
+
+    @Test
+    void shouldSpillLargeReadResults(@TempDir Path dir) throws Exception {
+        int numRows = 10_000;
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeQuery()).thenReturn(resultSet);
+        int[] cursor = {0};
+        when(resultSet.next()).thenAnswer(invocation -> ++cursor[0] <= numRows);
+        when(resultSet.getObject(1, Long.class)).thenAnswer(invocation -> (long) cursor[0]);
+        when(resultSet.getObject(2, String.class)).thenAnswer(invocation -> cursor[0] % 10 == 0 ? null : "v" + cursor[0]);
+        when(resultSet.getObject(3, BigDecimal.class)).thenAnswer(invocation -> BigDecimal.valueOf(cursor[0], 2));
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        StorageConfig config = new StorageConfig().readMemoryBudget(64 * 1024).spillDir(dir);
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            List<Row> rows = storage.read("read", List.of(Long.class, String.class, BigDecimal.class), null);
+            assertTrue(((SpillingRowList) rows).spilled());
+            assertEquals(numRows, rows.size());
+            for (int i = 0; i < numRows; i += 999) {
+                long key = i + 1;
+                assertEquals(new Row(i, Arrays.asList(key, key % 10 == 0 ? null : "v" + key, BigDecimal.valueOf(key, 2))),
+                    rows.get(i));
+            }
+            assertEquals(numRows, storage.metrics().query("read").rowsRead());
+            // the spill file is deleted while still mapped
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
+
+    @Test
+    void shouldTuneAdaptiveBatchSize() throws Exception {
+        long targetNanos = Duration.ofMillis(10).toNanos();
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(Duration.ofMillis(10), 16, 100);
+        assertEquals(16, batchSize.size());
+        // additive increase while within target
+        batchSize.record(16, targetNanos / 10);
+        assertEquals(32, batchSize.size());
+        // partial batches never increase
+        batchSize.record(8, targetNanos / 10);
+        assertEquals(32, batchSize.size());
+        // capped by the size projected from throughput
+        batchSize.record(32, targetNanos * 9 / 10);
+        assertEquals(35, batchSize.size());
+        for (int i = 0; i < 10; i++) {
+            batchSize.record(batchSize.size(), 1);
+        }
+        assertEquals(100, batchSize.size());
+        // multiplicative decrease when above target
+        batchSize.record(100, targetNanos * 2);
+        assertEquals(50, batchSize.size());
+        batchSize.record(10, targetNanos * 2);
+        assertEquals(16, batchSize.size());
+
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        when(prepStmt.executeBatch()).thenReturn(new int[]{1, 1, 1, 1});
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        // a generous target, so that a slow build machine still sees a fast batch
+        StorageConfig config = new StorageConfig().adaptiveBatchSize(4, 8).adaptiveBatchLatency(Duration.ofSeconds(10));
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(0, storage.write("write", List.of(i), QueryableStorage.ADAPTIVE_BATCH_SIZE));
+            }
+            assertEquals(4, storage.write("write", List.of(3), QueryableStorage.ADAPTIVE_BATCH_SIZE));
+            // the size grew after a fast batch
+            for (int i = 0; i < 4; i++) {
+                assertEquals(0, storage.write("write", List.of(i), QueryableStorage.ADAPTIVE_BATCH_SIZE));
+            }
+            verify(prepStmt, times(1)).executeBatch();
+        }
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().adaptiveBatchSize(1, 8));
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().adaptiveBatchSize(8, 4));
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().adaptiveBatchLatency(Duration.ZERO));
+    }
+
+    @Test
+    void shouldLogSlowQueriesWithPlan() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        PreparedStatement explainStmt = mock(PreparedStatement.class);
+        ResultSet planResult = mock(ResultSet.class);
+        when(conn.prepareStatement("valid SQL query")).thenReturn(prepStmt);
+        when(conn.prepareStatement("EXPLAIN valid SQL query")).thenReturn(explainStmt);
+        when(prepStmt.executeUpdate()).thenReturn(1);
+        when(explainStmt.executeQuery()).thenReturn(planResult);
+        when(planResult.next()).thenReturn(true, false);
+        when(planResult.getString(1)).thenReturn("full scan");
+
+        Properties queries = new Properties();
+        queries.put("write", "valid SQL query");
+        List<SlowQuery> slowQueries = new ArrayList<>();
+        StorageConfig config = new StorageConfig().slowQuerySampling(1).slowQueryRate(2)
+            .slowQueryRedaction(true).slowQuerySink(slowQueries::add).executor(Runnable::run);
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            for (int i = 0; i < 3; i++) {
+                storage.write("write", Arrays.asList(1L, "secret", null));
+            }
+            assertEquals(2, slowQueries.size());
+            SlowQuery slowQuery = slowQueries.get(0);
+            assertEquals("write", slowQuery.queryName());
+            assertEquals(Arrays.asList("<Long>", "<String>", null), slowQuery.queryParams());
+            assertEquals(1, slowQuery.rows());
+            assertTrue(slowQuery.sampled());
+            assertEquals("full scan", slowQuery.plan());
+            verify(explainStmt, times(2)).setObject(2, "secret");
+        }
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().slowQuerySampling(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().slowQueryThreshold(Duration.ofMillis(-1)));
+        assertThrows(IllegalArgumentException.class, () -> new StorageConfig().slowQueryRate(0));
+    }
+
+    @Test
+    void shouldRejectExecutionsOverConcurrencyLimit() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement prepStmt = mock(PreparedStatement.class);
+        when(conn.prepareStatement(any())).thenReturn(prepStmt);
+        // open streams are tracked by result set
+        when(prepStmt.executeQuery()).thenAnswer(invocation -> mock(ResultSet.class));
+        when(prepStmt.executeUpdate()).thenReturn(1);
+
+        Properties queries = new Properties();
+        queries.put("read", "valid SQL query");
+        queries.put("read@concurrency", "1");
+        queries.put("read@queue", "0");
+        queries.put("report", "valid SQL query");
+        queries.put("report@concurrency", "1");
+        queries.put("report@timeout", "5");
+        StorageConfig config = new StorageConfig().queueTimeout(Duration.ofMillis(50));
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries, config)) {
+            try (Stream<Row> rows = storage.stream("read", List.of(String.class), null, 10)) {
+                Exception e = assertThrows(RejectedExecutionException.class, () -> storage.read("read", List.of(String.class)));
+                assertEquals("Query read rejected: queue full", e.getMessage());
+            }
+            storage.read("read", List.of(String.class));
+            try (Stream<Row> rows = storage.stream("report", List.of(String.class), null, 10)) {
+                Exception e = assertThrows(RejectedExecutionException.class, () -> storage.read("report", List.of(String.class)));
+                assertEquals("Query report rejected: queue timeout", e.getMessage());
+            }
+            assertEquals(1, storage.metrics().query("read").rejections());
+            assertEquals(1, storage.metrics().query("report").rejections());
+            verify(prepStmt).setQueryTimeout(5);
+
+            // an execution admitted before a reload releases its permit to the previous limit
+            Stream<Row> previous = storage.stream("read", List.of(String.class), null, 10);
+            Properties reloaded = new Properties();
+            reloaded.put("read", "valid SQL query");
+            reloaded.put("read@concurrency", "2");
+            reloaded.put("read@queue", "0");
+            storage.reload(reloaded);
+            try (Stream<Row> first = storage.stream("read", List.of(String.class), null, 10);
+                 Stream<Row> second = storage.stream("read", List.of(String.class), null, 10)) {
+                previous.close();
+                assertThrows(RejectedExecutionException.class, () -> storage.read("read", List.of(String.class)));
+            }
+            storage.read("read", List.of(String.class));
+        }
+        queries.put("read@concurrency", "0");
+        assertThrows(IllegalArgumentException.class, () -> QueryableStorage.create(conn, queries));
+    }
+
+    @Test
+    void shouldReloadOnlyChangedQueries() throws Exception {
+        Connection conn = mock(Connection.class);
+        PreparedStatement same = mock(PreparedStatement.class);
+        PreparedStatement changed = mock(PreparedStatement.class);
+        PreparedStatement updated = mock(PreparedStatement.class);
+        when(conn.prepareStatement("same SQL query")).thenReturn(same);
+        when(conn.prepareStatement("changed SQL query")).thenReturn(changed);
+        when(conn.prepareStatement("updated SQL query")).thenReturn(updated);
+        when(conn.prepareStatement("added SQL query")).thenReturn(mock(PreparedStatement.class));
+        when(conn.prepareStatement("invalid SQL query")).thenThrow(new SQLException("syntax error"));
+        when(same.executeUpdate()).thenReturn(1);
+        when(updated.executeUpdate()).thenReturn(2);
+
+        Properties queries = new Properties();
+        queries.put("same", "same SQL query");
+        queries.put("changed", "changed SQL query");
+        queries.put("removed", "removed SQL query");
+        when(conn.prepareStatement("removed SQL query")).thenReturn(mock(PreparedStatement.class));
+        try (QueryableStorage storage = QueryableStorage.create(conn, queries)) {
+            Properties reloaded = new Properties();
+            reloaded.put("same", "same SQL query");
+            reloaded.put("changed", "updated SQL query");
+            reloaded.put("added", "added SQL query");
+            storage.reload(reloaded);
+            assertTrue(reloaded.isEmpty());
+            assertEquals(1, storage.write("same", List.of()));
+            assertEquals(2, storage.write("changed", List.of()));
+            assertEquals(0, storage.metrics().query("added").calls());
+            Exception e = assertThrows(IllegalArgumentException.class, () -> storage.write("removed", List.of()));
+            assertEquals("Query removed not found", e.getMessage());
+            verify(conn, times(1)).prepareStatement("same SQL query");
+            verify(changed).close();
+            verify(same, never()).close();
+
+            Properties invalid = new Properties();
+            invalid.put("same", "same SQL query");
+            invalid.put("changed", "invalid SQL query");
+            e = assertThrows(RuntimeException.class, () -> storage.reload(invalid));
+            assertEquals("Query changed failed: syntax error", e.getMessage());
+            assertEquals(2, storage.write("changed", List.of()));
+            assertThrows(IllegalArgumentException.class, () -> storage.reload(new Properties()));
+        }
+    }
+
+    record Note(long noId, String noText, BigDecimal noAmount) { }
 }
@@ -14,8 +14,9 @@ import java.util.List;
 import java.util.Properties;
 
 /**
- * We are using one shared connection because this app is single threaded,
- * but this is not recommended in case of multiple threads querying the database.
+ * We are using one shared connection because this app is single threaded.
+ * When multiple threads query the database, create the storage from a DataSource,
+ * so that each thread gets its own pooled connection instead of waiting for the shared one.
  */
 public class RunPagamento {
     public static void main(String[] args) {
@@ -79,25 +80,12 @@ public class RunPagamento {
             if (key == 0) {
                 throw new IllegalArgumentException("Invalid key");
             }
-            List<QueryableStorage.Row> rows = storage.read(
+            List<Pagamento> rows = storage.read(
                     "pagamento.select.by.pk",
-                    List.of(Long.class, Long.class, BigDecimal.class, LocalDate.class,
-                            Long.class, Long.class, String.class, String.class),
+                    Pagamento.class,
                     List.of(String.valueOf(key))
             );
-            if (rows.size() == 0) {
-                return null;
-            }
-            return new Pagamento(
-                    (Long) rows.get(0).columns().get(0),
-                    (Long) rows.get(0).columns().get(1),
-                    (BigDecimal) rows.get(0).columns().get(2),
-                    (LocalDate) rows.get(0).columns().get(3),
-                    (Long) rows.get(0).columns().get(4),
-                    (Long) rows.get(0).columns().get(5),
-                    (String) rows.get(0).columns().get(6),
-                    (String) rows.get(0).columns().get(7)
-            );
+            return rows.isEmpty() ? null : rows.get(0);
         }
 
         public int update(Pagamento pagamento) {
@@ -9,15 +9,17 @@ import it.fvaleri.qstorage.QueryableStorage;
 import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.util.ArrayList;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Properties;
 
 import static java.lang.String.format;
 
 /**
- * We are using one shared connection because this app is single threaded,
- * but this is not recommended in case of multiple threads querying the database.
+ * We are using one shared connection because this app is single threaded.
+ * When multiple threads query the database, create the storage from a DataSource,
+ * so that each thread gets its own pooled connection instead of waiting for the shared one.
  */
 public class RunUsers {
     public static void main(String[] args) {
@@ -71,26 +73,15 @@ public class RunUsers {
             if (key == null) {
                 throw new IllegalArgumentException("Invalid key");
             }
-            List<QueryableStorage.Row> rows = storage.read("users.select.by.pk", List.of(String.class, String.class, String.class), List.of(key));
+            List<User> rows = storage.read("users.select.by.pk", UsersDao::toUser, List.of(key));
             if (rows.size() == 0) {
                 throw new RuntimeException(format("User %s not found", key));
             }
-            return new User(
-                    (String) rows.get(0).columns().get(0),
-                    (String) rows.get(0).columns().get(1),
-                    (String) rows.get(0).columns().get(2)
-            );
+            return rows.get(0);
         }
 
         public List<User> findAll() {
-            List<User> result = new ArrayList<>();
-            List<QueryableStorage.Row> rows = storage.read("users.select.all", List.of(String.class, String.class, String.class));
-            rows.forEach(row -> result.add(new User(
-                    (String) row.columns().get(0),
-                    (String) row.columns().get(1),
-                    (String) row.columns().get(2)
-            )));
-            return result;
+            return storage.read("users.select.all", UsersDao::toUser, null);
         }
 
         public int update(User user) {
@@ -106,6 +97,14 @@ public class RunUsers {
             }
             return storage.write("users.delete", List.of(userid));
         }
+
+        private static User toUser(ResultSet resultSet) throws SQLException {
+            return new User(
+                    resultSet.getString(1),
+                    resultSet.getString(2),
+                    resultSet.getString(3)
+            );
+        }
     }
 
     static class User {